@@ -0,0 +1,147 @@
+package el;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed binary framing, negotiated with the "binary" login capability.
+// After the text login line the server answers with one text line, "BINARY:<your id>",
+// and from then on both directions use frames: int length (opcode + body), byte opcode, body.
+// Numbers are big-endian; text is UTF-8 and runs to the end of the frame. Line breaks in text a
+// client sends become spaces, as text clients get the same message as one line.
+final class BinaryProtocol {
+    // Server -> client
+    static final byte TEXT = 0x01;      // any text-protocol line (replayed history, errors)
+    static final byte MESSAGE = 0x10;   // int senderId, long timeMillis, text
+    static final byte PRIVATE = 0x11;   // int senderId, long timeMillis, text
+    static final byte SENT = 0x12;      // int recipientId, long timeMillis, text
+    static final byte ROOM_MESSAGE = 0x13; // int senderId, long timeMillis, short roomLength, room, text
+    static final byte SNAPSHOT = 0x20;  // long version, int count, count x (int id, short nameLength, name)
+    static final byte JOIN = 0x21;      // long version, int id, name
+    static final byte LEAVE = 0x22;     // long version, int id
+    static final byte DEFLATED = 0x30;  // raw deflate of complete frames, see Compression ("deflate" capability)
+
+    // Client -> server
+    static final byte SAY = 0x10;       // text, to everyone
+    static final byte WHISPER = 0x11;   // int recipientId, text
+    static final byte ROOM_SAY = 0x12;  // short roomLength, room, text
+    static final byte ROOM_JOIN = 0x13; // room
+    static final byte ROOM_LEAVE = 0x14; // room
+    static final byte SEARCH = 0x15;    // int page, query
+    static final byte EXIT = 0x0F;
+
+    static final String ACK = "BINARY:";
+
+    private BinaryProtocol() {}
+
+    static Frame text(byte[] line, int length) {
+        ByteBuffer b = allocate(1 + length);
+        b.put(TEXT).put(line, 0, length);
+        return Frame.ofBytes(b.array());
+    }
+
+    static Frame message(byte opcode, int userId, long time, String text) {
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = allocate(1 + 4 + 8 + t.length);
+        b.put(opcode).putInt(userId).putLong(time).put(t);
+        return Frame.ofBytes(b.array());
+    }
+
+    static Frame roomMessage(int userId, long time, String room, String text) {
+        byte[] r = room.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = allocate(1 + 4 + 8 + 2 + r.length + t.length);
+        b.put(ROOM_MESSAGE).putInt(userId).putLong(time).putShort((short) r.length).put(r).put(t);
+        return Frame.ofBytes(b.array());
+    }
+
+    static Frame snapshot(long version, Iterable<? extends ChatCore.User> users, int count) {
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + 8 + 4 + count * 64);
+        b.position(4);
+        b.put(SNAPSHOT).putLong(version);
+        int countAt = b.position();
+        b.putInt(0);
+        int written = 0;
+        for (ChatCore.User u : users) {
+            byte[] name = u.username().getBytes(StandardCharsets.UTF_8);
+            if (b.remaining() < 6 + name.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2 + name.length);
+                b.flip();
+                bigger.put(b);
+                b = bigger;
+            }
+            b.putInt(u.id()).putShort((short) name.length).put(name);
+            written++;
+        }
+        b.putInt(countAt, written);
+        b.putInt(0, b.position() - 4);
+        byte[] bytes = new byte[b.position()];
+        System.arraycopy(b.array(), 0, bytes, 0, bytes.length);
+        return Frame.ofBytes(bytes);
+    }
+
+    static Frame join(long version, int id, String name) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = allocate(1 + 8 + 4 + n.length);
+        b.put(JOIN).putLong(version).putInt(id).put(n);
+        return Frame.ofBytes(b.array());
+    }
+
+    static Frame leave(long version, int id) {
+        ByteBuffer b = allocate(1 + 8 + 4);
+        b.put(LEAVE).putLong(version).putInt(id);
+        return Frame.ofBytes(b.array());
+    }
+
+    // Client side: one frame per call; the caller serializes writes to the stream
+    static void write(DataOutputStream out, byte opcode, int userId, String text) throws IOException {
+        byte[] t = text.getBytes(StandardCharsets.UTF_8);
+        // WHISPER carries the recipient's id there, SEARCH the page
+        boolean addressed = opcode == WHISPER || opcode == SEARCH;
+        out.writeInt(1 + (addressed ? 4 : 0) + t.length);
+        out.writeByte(opcode);
+        if (addressed) out.writeInt(userId);
+        out.write(t);
+        out.flush();
+    }
+
+    // Client side: ROOM_SAY with text, or ROOM_JOIN / ROOM_LEAVE with text null
+    static void writeRoom(DataOutputStream out, byte opcode, String room, String text) throws IOException {
+        byte[] r = room.getBytes(StandardCharsets.UTF_8);
+        byte[] t = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        boolean say = opcode == ROOM_SAY;
+        out.writeInt(1 + (say ? 2 : 0) + r.length + t.length);
+        out.writeByte(opcode);
+        if (say) out.writeShort(r.length);
+        out.write(r);
+        out.write(t);
+        out.flush();
+    }
+
+    // Length-prefixed UTF-8 string, as in ROOM_SAY and ROOM_MESSAGE; null if the frame is too
+    // short for the length it declares
+    static String shortText(ByteBuffer frame) {
+        if (frame.remaining() < 2) return null;
+        int length = frame.getShort() & 0xFFFF;
+        if (length > frame.remaining()) return null;
+        byte[] b = new byte[length];
+        frame.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Rest of the frame as UTF-8 text
+    static String remainingText(ByteBuffer frame) {
+        if (!frame.hasArray()) return StandardCharsets.UTF_8.decode(frame).toString();
+        String s = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+        frame.position(frame.limit());
+        return s;
+    }
+
+    // Length prefix filled in, positioned at the opcode
+    private static ByteBuffer allocate(int length) {
+        ByteBuffer b = ByteBuffer.allocate(4 + length);
+        b.putInt(length);
+        return b;
+    }
+}
@@ -0,0 +1,38 @@
+package el;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Shared pool of fixed-size direct buffers, so idle connections hold none
+final class BufferPool {
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        b.clear();
+        return b;
+    }
+
+    void release(ByteBuffer b) {
+        if (b.capacity() != bufferSize) return;
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(b);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    int bufferSize() { return bufferSize; }
+}
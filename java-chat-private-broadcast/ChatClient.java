@@ -6,24 +6,74 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.List;
 
 public class ChatClient extends JFrame {
-    private static final String SERVER_IP = "localhost";
-    private static final int SERVER_PORT = 12345;
+    private static final long serialVersionUID = 1L;
+    private static final String SERVER_IP = System.getProperty("chat.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 12345);
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
+    // Binary protocol (-Dchat.binary=true): frames instead of text lines, users addressed by id
+    private static final boolean BINARY = Boolean.getBoolean("chat.binary");
+    // With the binary protocol, ask for DEFLATE-compressed frames (-Dchat.deflate=true)
+    private static final boolean DEFLATE = Boolean.getBoolean("chat.deflate");
+    private DataInputStream binaryIn;
+    private DataOutputStream binaryOut;
+    private final ClientProtocol protocol = new ClientProtocol(new ClientProtocol.Listener() {
+        public void message(String time, String user, String msg, boolean isPrivate, boolean isSent) {
+            addMessage(time, user, msg, isPrivate, isSent);
+        }
+
+        public void users(int count, String users) { updateUsers(count, users); }
+
+        public void snapshot(long version, String users) { applySnapshot(version, users); }
+
+        public void presence(long version, String user, boolean joined) { applyPresence(version, user, joined); }
+
+        public void roomMessage(String room, String time, String user, String msg) {
+            appendLine("[" + time + "] #" + room + " " + user + ": " + msg);
+        }
+
+        public void room(String room, boolean joined) { applyRoom(room, joined); }
+
+        public void error(String text) { appendLine("*** " + text); }
+
+        public void searchResults(int page, int total, List<SearchIndex.Hit> hits) { showResults(page, total, hits); }
+    });
     private String username;
-    private JTextArea chatArea;
+    private MessageView chatView;
     private JTextField msgInput;
     private JLabel statusLabel, usersLabel;
     private JList<String> userList;
     private DefaultListModel<String> userModel;
+    // Presence version of the last SNAPSHOT; older JOIN/LEAVE deltas are ignored
+    private long presenceVersion = -1;
     private String selectedUser = "All";
+    // Rooms this user is in, listed as "#name" between "All" and the users (EDT only)
+    private final ArrayList<String> rooms = new ArrayList<>();
     private volatile boolean connected = false;
+    // Set when the user closes the window; a dropped connection is otherwise resumed
+    private volatile boolean closing = false;
+    // Last "/search" query and the page "/more" asked for (EDT only)
+    private String lastSearch;
+    private int searchPage;
+    // Results of the last search shown so far (reader thread)
+    private int searchShown;
+    private final DateTimeFormatter searchTime = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    // How long to keep trying to resume; the server holds the session for its own grace period
+    private static final long RESUME_WINDOW_MILLIS = Long.getLong("chat.resumeWindowMillis", 30_000);
+    // Transcript: messages kept on screen, and how often new ones are drawn
+    private static final int VIEW_MESSAGES = Integer.getInteger("chat.viewMessages", 5000);
+    private static final int VIEW_FRAME_MILLIS = Integer.getInteger("chat.viewFrameMillis", 16);
 
     public ChatClient() {
         setupUI();
@@ -34,6 +84,10 @@ public class ChatClient extends JFrame {
         setTitle("Chat Client");
         setSize(900, 650);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
+        // Leave properly, so the server doesn't hold the session waiting for a reconnect
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) { sendExit(); }
+        });
         setLocationRelativeTo(null);
 
         // Header Panel
@@ -64,6 +118,16 @@ public class ChatClient extends JFrame {
         JLabel chatLabel = new JLabel("Select Chat");
         chatLabel.setFont(new Font("Arial", Font.BOLD, 15));
         sidebarHeader.add(chatLabel);
+        JButton joinRoomBtn = new JButton("+ Room");
+        joinRoomBtn.setFont(new Font("Arial", Font.PLAIN, 11));
+        joinRoomBtn.setFocusPainted(false);
+        joinRoomBtn.addActionListener(e -> joinRoom());
+        JButton leaveRoomBtn = new JButton("Leave");
+        leaveRoomBtn.setFont(new Font("Arial", Font.PLAIN, 11));
+        leaveRoomBtn.setFocusPainted(false);
+        leaveRoomBtn.addActionListener(e -> leaveRoom());
+        sidebarHeader.add(joinRoomBtn);
+        sidebarHeader.add(leaveRoomBtn);
 
         userModel = new DefaultListModel<>();
         userModel.addElement("All (Everyone)");
@@ -96,17 +160,9 @@ public class ChatClient extends JFrame {
         JPanel centerPanel = new JPanel(new BorderLayout());
         centerPanel.setBackground(new Color(230, 221, 212));
 
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setFont(new Font("Arial", Font.PLAIN, 14));
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setMargin(new Insets(15, 15, 15, 15));
-        chatArea.setBackground(new Color(230, 221, 212));
-
-        JScrollPane chatScroll = new JScrollPane(chatArea);
-        chatScroll.setBorder(null);
-        centerPanel.add(chatScroll, BorderLayout.CENTER);
+        chatView = new MessageView(VIEW_MESSAGES, VIEW_FRAME_MILLIS, new Font("Arial", Font.PLAIN, 14), new Color(230, 221, 212));
+        chatView.setBorder(null);
+        centerPanel.add(chatView, BorderLayout.CENTER);
 
         // Bottom - Message Input with TWO SEND BUTTONS
         JPanel inputPanel = new JPanel(new BorderLayout(10, 0));
@@ -122,7 +178,9 @@ public class ChatClient extends JFrame {
         msgInput.addKeyListener(new KeyAdapter() {
             public void keyPressed(KeyEvent e) {
                 if (e.getKeyCode() == KeyEvent.VK_ENTER) {
-                    if (selectedUser.equals("All")) {
+                    if (isSearch(msgInput.getText().trim())) {
+                        search(msgInput.getText().trim());
+                    } else if (selectedUser.equals("All")) {
                         sendToAll();
                     } else {
                         sendPrivate();
@@ -179,13 +237,15 @@ public class ChatClient extends JFrame {
                 username = username.trim();
 
                 socket = new Socket(SERVER_IP, SERVER_PORT);
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                InputStream raw = new BufferedInputStream(socket.getInputStream());
 
-                out.println(username);
+                // "presence": server sends a SNAPSHOT once, then JOIN/LEAVE deltas;
+                // "resume": a session token, so a dropped connection can pick up where it left off
+                out.println(username + "|presence,resume" + (BINARY ? ",binary" + (DEFLATE ? ",deflate" : "") : ""));
 
-                // Check for username error
-                String response = in.readLine();
+                // Check for username error; read byte-wise since binary frames may follow the reply
+                String response = readLine(raw);
                 if (response != null && response.startsWith("ERROR:")) {
                     JOptionPane.showMessageDialog(this, "Username already exists! Choose another.", "Error", JOptionPane.ERROR_MESSAGE);
                     socket.close();
@@ -193,13 +253,21 @@ public class ChatClient extends JFrame {
                     return;
                 }
 
+                if (response != null && response.startsWith(BinaryProtocol.ACK)) {
+                    binaryIn = new DataInputStream(raw);
+                    binaryOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    response = null;
+                } else {
+                    in = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8));
+                }
+
                 connected = true;
                 SwingUtilities.invokeLater(() -> {
                     setTitle("Chat - " + username);
                     statusLabel.setText(username);
                 });
 
-                if (response != null) processMessage(response);
+                if (response != null) protocol.processMessage(response);
                 new MessageListener().start();
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(this, "Connection failed: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
@@ -208,11 +276,89 @@ public class ChatClient extends JFrame {
         }).start();
     }
 
+    // The socket dropped: reconnect and resume the session, getting only what was missed. Retries
+    // back off with jitter so that clients cut off together don't all come back at once.
+    private boolean resumeSession() {
+        String token = protocol.session();
+        if (token == null || closing) return false;
+        SwingUtilities.invokeLater(() -> statusLabel.setText("Reconnecting..."));
+        Random random = new Random();
+        long deadline = System.currentTimeMillis() + RESUME_WINDOW_MILLIS;
+        long delay = 250;
+        while (!closing && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(delay / 2 + random.nextInt((int) delay));
+            } catch (InterruptedException e) {
+                return false;
+            }
+            delay = Math.min(delay * 2, 4000);
+            try {
+                Socket s = new Socket(SERVER_IP, SERVER_PORT);
+                PrintWriter o = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+                InputStream raw = new BufferedInputStream(s.getInputStream());
+                o.println("RESUME:" + token + ":" + protocol.received());
+                String reply = readLine(raw);
+                if (reply == null || !reply.startsWith("RESUMED:")) {
+                    // The server no longer holds the session
+                    s.close();
+                    return false;
+                }
+                socket = s;
+                out = o;
+                if (BINARY) {
+                    binaryIn = new DataInputStream(raw);
+                    binaryOut = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                } else {
+                    in = new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8));
+                }
+                return true;
+            } catch (IOException e) {
+                // Server not reachable yet; try again
+            }
+        }
+        return false;
+    }
+
+    private void sendExit() {
+        closing = true;
+        if (!connected) return;
+        if (binaryOut != null) {
+            sendFrame(BinaryProtocol.EXIT, 0, "");
+        } else {
+            out.println("EXIT");
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') line.write(b);
+        if (b == -1 && line.size() == 0) return null;
+        String s = line.toString(StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private void sendFrame(byte opcode, int userId, String msg) {
+        synchronized (binaryOut) {
+            try {
+                BinaryProtocol.write(binaryOut, opcode, userId, msg);
+            } catch (IOException e) {
+                connected = false;
+            }
+        }
+    }
+
     private void sendToAll() {
         if (!connected) return;
         String msg = msgInput.getText().trim();
-        if (!msg.isEmpty()) {
-            out.println(msg);
+        if (isSearch(msg)) {
+            search(msg);
+        } else if (!msg.isEmpty()) {
+            if (binaryOut != null) {
+                sendFrame(BinaryProtocol.SAY, 0, msg);
+            } else {
+                out.println(msg);
+            }
             msgInput.setText("");
         }
     }
@@ -222,6 +368,11 @@ public class ChatClient extends JFrame {
         String msg = msgInput.getText().trim();
         if (msg.isEmpty()) return;
 
+        if (selectedUser.startsWith("#")) {
+            sendToRoom(selectedUser.substring(1), msg);
+            return;
+        }
+
         if (selectedUser.equals("All")) {
             JOptionPane.showMessageDialog(this, 
                 "Please select a specific user from the list for private chat!", 
@@ -229,29 +380,120 @@ public class ChatClient extends JFrame {
             return;
         }
 
-        out.println("PRIVATE:" + selectedUser + ":" + msg);
+        if (binaryOut != null) {
+            Integer id = protocol.userId(selectedUser);
+            if (id == null) return;
+            sendFrame(BinaryProtocol.WHISPER, id, msg);
+        } else {
+            out.println("PRIVATE:" + selectedUser + ":" + msg);
+        }
         msgInput.setText("");
     }
 
-    private void addMessage(String time, String user, String msg, boolean isPrivate, boolean isSent) {
-        SwingUtilities.invokeLater(() -> {
-            String prefix = "";
-            if (isPrivate) {
-                prefix = isSent ? "You to " + user : user + " to You";
-                chatArea.append(String.format("[%s] %s (private): %s\n", time, prefix, msg));
-            } else {
-                chatArea.append(String.format("[%s] %s: %s\n", time, user, msg));
+    private static boolean isSearch(String msg) {
+        return msg.startsWith("/search ") || msg.equals("/more");
+    }
+
+    // "/search <words> [from:user] [after:date] [before:date]" shows the newest matches,
+    // "/more" the next older page of the last search
+    private void search(String command) {
+        if (!connected) return;
+        if (command.equals("/more")) {
+            if (lastSearch == null) return;
+            searchPage++;
+        } else {
+            lastSearch = command.substring("/search ".length()).trim();
+            searchPage = 0;
+        }
+        if (binaryOut != null) {
+            sendFrame(BinaryProtocol.SEARCH, searchPage, lastSearch);
+        } else {
+            out.println("SEARCH:" + searchPage + ":" + lastSearch);
+        }
+        msgInput.setText("");
+    }
+
+    private void showResults(int page, int total, List<SearchIndex.Hit> hits) {
+        searchShown = page == 0 ? hits.size() : searchShown + hits.size();
+        String count = total >= SearchIndex.MAX_COUNT ? total + "+" : String.valueOf(total);
+        appendLine("--- Search: " + count + " matches, page " + (page + 1) + " ---");
+        for (SearchIndex.Hit hit : hits) {
+            String when = Instant.ofEpochMilli(hit.time).atZone(ZoneId.systemDefault()).format(searchTime);
+            String who = hit.recipient == null ? hit.sender : hit.sender + " to " + hit.recipient + " (private)";
+            appendLine("[" + when + "] " + who + ": " + hit.text);
+        }
+        if (searchShown < total) appendLine("--- /more for older ---");
+    }
+
+    private void sendToRoom(String room, String msg) {
+        if (binaryOut != null) {
+            synchronized (binaryOut) {
+                try {
+                    BinaryProtocol.writeRoom(binaryOut, BinaryProtocol.ROOM_SAY, room, msg);
+                } catch (IOException e) {
+                    connected = false;
+                }
             }
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        } else {
+            out.println("ROOM:" + room + ":" + msg);
+        }
+        msgInput.setText("");
+    }
+
+    private void joinRoom() {
+        if (!connected) return;
+        String room = JOptionPane.showInputDialog(this, "Room name:", "Join Room", JOptionPane.QUESTION_MESSAGE);
+        if (room == null || room.trim().isEmpty()) return;
+        room = room.trim();
+        if (!Room.validName(room)) {
+            JOptionPane.showMessageDialog(this, "Room names can't contain ':' or ','.", "Join Room", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        sendRoomCommand(BinaryProtocol.ROOM_JOIN, "JOINROOM:", room);
+    }
+
+    private void leaveRoom() {
+        if (!connected) return;
+        if (!selectedUser.startsWith("#")) {
+            JOptionPane.showMessageDialog(this, "Select a room to leave first.", "Leave Room", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        sendRoomCommand(BinaryProtocol.ROOM_LEAVE, "LEAVEROOM:", selectedUser.substring(1));
+    }
+
+    private void sendRoomCommand(byte opcode, String prefix, String room) {
+        if (binaryOut != null) {
+            synchronized (binaryOut) {
+                try {
+                    BinaryProtocol.writeRoom(binaryOut, opcode, room, null);
+                } catch (IOException e) {
+                    connected = false;
+                }
+            }
+        } else {
+            out.println(prefix + room);
+        }
+    }
+
+    private void addMessage(String time, String user, String msg, boolean isPrivate, boolean isSent) {
+        if (isPrivate) {
+            String prefix = isSent ? "You to " + user : user + " to You";
+            appendLine("[" + time + "] " + prefix + " (private): " + msg);
+        } else {
+            appendLine("[" + time + "] " + user + ": " + msg);
+        }
+    }
+
+    // Any thread; the view batches lines and draws them once per frame
+    private void appendLine(String line) {
+        chatView.append(line);
     }
 
     private void updateUsers(int count, String users) {
         SwingUtilities.invokeLater(() -> {
             usersLabel.setText("Online: " + count);
             String currentSelection = selectedUser;
-            userModel.clear();
-            userModel.addElement("All (Everyone)");
+            resetList();
 
             if (!users.isEmpty()) {
                 for (String user : users.split(",")) {
@@ -275,61 +517,106 @@ public class ChatClient extends JFrame {
         });
     }
 
-    private void updateChatHeader() {
-        chatArea.append("\n--- Now chatting with: " + selectedUser + " ---\n\n");
+    // Full list, sent once at login; replaces whatever deltas arrived before it
+    private void applySnapshot(long version, String users) {
+        SwingUtilities.invokeLater(() -> {
+            presenceVersion = version;
+            String currentSelection = selectedUser;
+            resetList();
+            if (!users.isEmpty()) {
+                for (String user : users.split(",")) {
+                    if (!user.equals(username)) userModel.addElement(user);
+                }
+            }
+            updateOnlineCount();
+            int idx = currentSelection.equals("All") ? 0 : userModel.indexOf(currentSelection);
+            userList.setSelectedIndex(Math.max(idx, 0));
+        });
     }
 
-    private void processMessage(String msg) {
-        if (msg.startsWith("USERS:")) {
-            String[] parts = msg.split(":", 3);
-            if (parts.length == 3) {
-                updateUsers(Integer.parseInt(parts[1]), parts[2]);
-            }
-        } else if (msg.startsWith("PRIVATE:")) {
-            String[] parts = msg.split(":", 4);
-            if (parts.length == 4) {
-                addMessage(parts[1], parts[2], parts[3], true, false);
-            }
-        } else if (msg.startsWith("SENT:")) {
-            String[] parts = msg.split(":", 4);
-            if (parts.length == 4) {
-                addMessage(parts[1], parts[2], parts[3], true, true);
+    // Deltas are idempotent: a JOIN for a listed user or a LEAVE for an unknown one is a no-op
+    private void applyPresence(long version, String user, boolean joined) {
+        SwingUtilities.invokeLater(() -> {
+            if (version <= presenceVersion || user.equals(username)) return;
+            int idx = userModel.indexOf(user);
+            if (joined && idx < 0) {
+                userModel.addElement(user);
+            } else if (!joined && idx > 0) {
+                if (userList.getSelectedIndex() == idx) userList.setSelectedIndex(0);
+                userModel.remove(idx);
             }
-        } else if (msg.startsWith("[")) {
-            int closeIdx = msg.indexOf("]");
-            if (closeIdx > 0) {
-                String time = msg.substring(1, closeIdx);
-                String rest = msg.substring(closeIdx + 2);
-                int colonIdx = rest.indexOf(": ");
-                if (colonIdx > 0) {
-                    String user = rest.substring(0, colonIdx);
-                    String message = rest.substring(colonIdx + 2);
-                    addMessage(time, user, message, false, false);
-                }
+            updateOnlineCount();
+        });
+    }
+
+    // Joined rooms sit right after "All (Everyone)", in the order they were joined
+    private void applyRoom(String room, boolean joined) {
+        SwingUtilities.invokeLater(() -> {
+            int idx = rooms.indexOf(room);
+            if (joined && idx < 0) {
+                rooms.add(room);
+                userModel.add(rooms.size(), "#" + room);
+                userList.setSelectedIndex(rooms.size());
+            } else if (!joined && idx >= 0) {
+                rooms.remove(idx);
+                if (userList.getSelectedIndex() == idx + 1) userList.setSelectedIndex(0);
+                userModel.remove(idx + 1);
             }
-        }
+        });
+    }
+
+    // EDT: "All" and the rooms, ready for the user entries
+    private void resetList() {
+        userModel.clear();
+        userModel.addElement("All (Everyone)");
+        for (String room : rooms) userModel.addElement("#" + room);
+    }
+
+    // Every entry but "All" and the rooms is another user; plus this one
+    private void updateOnlineCount() {
+        usersLabel.setText("Online: " + (userModel.size() - rooms.size()));
+    }
+
+    private void updateChatHeader() {
+        appendLine("\n--- Now chatting with: " + selectedUser + " ---\n");
     }
 
     class MessageListener extends Thread {
         public void run() {
             try {
+                if (binaryIn != null) {
+                    byte[] buf = new byte[256];
+                    while (connected) {
+                        int length = binaryIn.readInt();
+                        if (length > buf.length) buf = new byte[length];
+                        binaryIn.readFully(buf, 0, length);
+                        protocol.processFrame(ByteBuffer.wrap(buf, 0, length));
+                    }
+                }
                 String msg;
-                while (connected && (msg = in.readLine()) != null) {
-                    processMessage(msg);
+                while (connected && in != null && (msg = in.readLine()) != null) {
+                    protocol.processMessage(msg);
                 }
             } catch (IOException e) {
             } finally {
                 connected = false;
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Disconnected");
-                    statusLabel.setForeground(Color.RED);
-                    msgInput.setEnabled(false);
-                });
             }
+            if (resumeSession()) {
+                connected = true;
+                SwingUtilities.invokeLater(() -> statusLabel.setText(username));
+                new MessageListener().start();
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                statusLabel.setText("Disconnected");
+                statusLabel.setForeground(Color.RED);
+                msgInput.setEnabled(false);
+            });
         }
     }
 
     class UserListRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
         public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
             JLabel label = (JLabel) super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
             label.setBorder(new EmptyBorder(10, 15, 10, 15));
@@ -0,0 +1,1417 @@
+package el;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Routing engine: connections, users, history and fan-out, with no UI attached.
+// Log lines go into a bounded ring and counters are plain fields; whatever displays the
+// server (the Swing window, the stdout printer, or nothing) samples them on its own schedule.
+class ChatCore {
+    // Anyone who appears in presence lists: a local client or a user on another cluster node
+    interface User {
+        String username();
+
+        int id();
+    }
+
+    // Directory entry for a user logged in on another node
+    static final class RemoteUser implements User {
+        final String username;
+        final int id;
+        final String node;
+        final long since;
+
+        RemoteUser(String username, int id, String node, long since) {
+            this.username = username; this.id = id; this.node = node; this.since = since;
+        }
+
+        public String username() { return username; }
+
+        public int id() { return id; }
+    }
+
+    private static final int PORT = ServerConfig.PORT;
+    private final ServerLog serverLog = new ServerLog(ServerConfig.LOG_BUFFER);
+    private final Metrics metrics = new Metrics(this);
+    private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ExecutorService sendExecutor;
+    private Journal journal;
+    private ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    // Numeric ids for the binary protocol; never reused while the server runs
+    private final ConcurrentHashMap<Integer, ClientHandler> clientsById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUserId = new AtomicInteger();
+    // Users on other cluster nodes, by name and by the local id they were given here
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, RemoteUser> remoteById = new ConcurrentHashMap<>();
+    private Cluster cluster;
+    // Rooms with at least one local member; a room message only touches its own subscribers
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final RateLimiter limiter = RateLimiter.fromConfig();
+    // Resumable sessions by token, connected or held through the grace period
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom();
+    // Held-session expiry and coalesced presence flushes
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-timers");
+        t.setDaemon(true);
+        return t;
+    });
+    // Private messages waiting for users who are offline; only names that have logged in here
+    // get one, and only the first MAILBOX_USERS of those
+    private final Mailboxes mailboxes = Mailboxes.fromConfig(this::logError);
+    private final Set<String> knownUsers = ConcurrentHashMap.newKeySet();
+    // Broadcasts and private messages for SEARCH, null when it is off
+    private final SearchIndex search =
+        ServerConfig.SEARCH_CAPACITY > 0 ? new SearchIndex(ServerConfig.SEARCH_CAPACITY, ServerConfig.SEARCH_QUEUE) : null;
+    private final MessageHistory messageHistory =
+        new MessageHistory(ServerConfig.HISTORY_SIZE, ServerConfig.HISTORY_RETENTION_MILLIS);
+    // Orders broadcasts: history, journal, cluster relay and the order the shards get them in.
+    // Without shards it also covers fan-out and private messages. A lock rather than a monitor
+    // so virtual threads don't pin.
+    private final ReentrantLock routeLock = new ReentrantLock();
+    // Per-core routing shards, null to route on the calling thread under routeLock
+    private final Router router;
+    // Orders presence changes; every JOIN/LEAVE/SNAPSHOT carries the version it was assigned here
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private long presenceVersion = 0;
+    // JOIN/LEAVE deltas waiting for the next presence flush, in version order; guarded by presenceLock
+    private ArrayList<String> presenceLines = new ArrayList<>();
+    private ArrayList<Frame> presenceFrames = new ArrayList<>();
+    private boolean presenceFlushDue;
+    private boolean presenceFlushing;
+    // Names taken by a logged-in user or one still logging in; claimed before anything else
+    // happens, so two logins racing for a name can't both get it
+    private final Set<String> reservedNames = ConcurrentHashMap.newKeySet();
+    // Connections accepted but not yet past their login line
+    private final Semaphore handshakes = new Semaphore(ServerConfig.MAX_HANDSHAKES);
+    private volatile ReplayBatch lastReplay;
+    private volatile boolean running = true;
+    private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    ChatCore() {
+        this(ServerConfig.ROUTE_SHARDS);
+    }
+
+    // 0 shards routes every message on the sender's thread under routeLock
+    ChatCore(int shards) {
+        router = shards > 0 ? new Router(shards, ServerConfig.ROUTE_QUEUE, this) : null;
+    }
+
+    // Open the journal and start accepting clients in the configured I/O mode
+    void start() {
+        metrics.start();
+        openJournal();
+        startCluster();
+        if (ServerConfig.nio()) {
+            startNioServer();
+        } else if (ServerConfig.virtual()) {
+            startVirtualServer();
+        } else {
+            sendExecutor = newSendExecutor(VirtualThreads.platformFactory("send-"));
+            startBlockingServer(Thread::new, "blocking");
+        }
+    }
+
+    // Reload recent broadcasts from the journal into history, then start appending to it
+    private void openJournal() {
+        if (ServerConfig.JOURNAL_DIR == null) return;
+        try {
+            journal = Journal.open(Paths.get(ServerConfig.JOURNAL_DIR), this::logError);
+            ArrayDeque<Journal.Record> recent = new ArrayDeque<>();
+            journal.replay(r -> {
+                if (search != null && r.kind != Journal.ROOM) search.load(r.time, r.sender, r.kind == Journal.PRIVATE ? r.recipient : null, r.text);
+                if (r.kind != Journal.BROADCAST) return;
+                recent.add(r);
+                if (recent.size() > messageHistory.capacity()) recent.poll();
+            });
+            for (Journal.Record r : recent) {
+                String time = Instant.ofEpochMilli(r.time).atZone(ZoneId.systemDefault()).format(formatter);
+                // Journals written before binary text was flattened may still hold line breaks
+                messageHistory.add(Frame.of(formatBroadcast(time, r.sender, oneLine(r.text))), r.time);
+            }
+            journal.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try { journal.close(); } catch (IOException e) {}
+            }));
+            log("[OK] Journal at " + ServerConfig.JOURNAL_DIR + ", " + recent.size() + " messages restored");
+        } catch (IOException e) {
+            journal = null;
+            log("[ERROR] Journal disabled: " + e.getMessage());
+        }
+    }
+
+    // Join the other nodes listed in chat.peers; their users and broadcasts show up here
+    private void startCluster() {
+        if (ServerConfig.CLUSTER_PORT <= 0) return;
+        // Anyone who can reach an open cluster port could speak for any user
+        if (ServerConfig.CLUSTER_SECRET.isEmpty()) {
+            log("[ERROR] Cluster disabled: set chat.clusterSecret on every node");
+            return;
+        }
+        try {
+            Cluster c = new Cluster(this, ServerConfig.NODE_ID, ServerConfig.PEERS, ServerConfig.CLUSTER_SECRET);
+            c.start(ServerConfig.CLUSTER_BIND, ServerConfig.CLUSTER_PORT);
+            cluster = c;
+            log("[OK] Cluster node " + ServerConfig.NODE_ID + " on " + ServerConfig.CLUSTER_BIND + ":" + ServerConfig.CLUSTER_PORT);
+        } catch (IOException e) {
+            log("[ERROR] Cluster disabled: " + e.getMessage());
+        }
+    }
+
+    // Selector event loops: a fixed number of I/O threads regardless of client count
+    private void startNioServer() {
+        try {
+            nioServer = new NioServer(this, ServerConfig.IO_THREADS);
+            nioServer.start(PORT);
+            log("[OK] Server started on port " + PORT + " (nio, " + nioServer.loopCount() + " I/O loops)");
+        } catch (IOException e) {
+            log("[ERROR] " + e.getMessage());
+        }
+    }
+
+    // Virtual thread per client; outbound writes go through the send executor
+    private void startVirtualServer() {
+        if (!VirtualThreads.available()) {
+            log("[WARN] Virtual threads need JDK 21+, using platform threads");
+        }
+        sendExecutor = newSendExecutor(VirtualThreads.factory("send-"));
+        startBlockingServer(VirtualThreads.factory("client-"), "virtual threads");
+    }
+
+    // Drains per-client outbound queues. A connection has at most one drain queued or running,
+    // so the work queue holds at most one task per client and never has to refuse one; a drain
+    // never runs on the routing thread. Writers stuck on a socket are cut off by the watchdog.
+    private ExecutorService newSendExecutor(ThreadFactory threads) {
+        if (ServerConfig.WRITE_TIMEOUT_MILLIS > 0) {
+            timers.scheduleWithFixedDelay(this::abortStalledWriters, 1, 1, TimeUnit.SECONDS);
+        }
+        return new ThreadPoolExecutor(
+            ServerConfig.SEND_THREADS, ServerConfig.SEND_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), threads);
+    }
+
+    // A blocking write has no timeout of its own; a client that stopped reading would hold a
+    // send thread for good, so it is dropped as a slow consumer instead
+    private void abortStalledWriters() {
+        long now = System.nanoTime();
+        for (ClientHandler c : clients.values()) {
+            Transport t = c.transport;
+            if (!(t instanceof SocketTransport) || !((SocketTransport) t).stalled(now)) continue;
+            log("[WARN] " + c.username + " stopped reading, disconnecting");
+            metrics.slowConsumers.increment();
+            t.abort();
+            c.disconnect();
+        }
+    }
+
+    // One blocking thread per connected client, created by the given factory. A thread is only
+    // started once a handshake slot is free, so a storm waits in the accept backlog, not in threads.
+    // The accept loop itself is a plain non-daemon thread: it is what keeps a headless server up,
+    // and virtual (or daemon) threads wouldn't.
+    private void startBlockingServer(ThreadFactory threads, String mode) {
+        new Thread(() -> {
+            try {
+                serverSocket = new ServerSocket(PORT, ServerConfig.ACCEPT_BACKLOG);
+                log("[OK] Server started on port " + PORT + " (" + mode + ")");
+                while (running) {
+                    Socket socket = serverSocket.accept();
+                    metrics.accepted.increment();
+                    // With every handshake slot taken, wait here; later connections queue in the backlog
+                    while (!awaitHandshake()) {
+                        if (!running) {
+                            socket.close();
+                            return;
+                        }
+                    }
+                    threads.newThread(() -> handleClient(socket)).start();
+                }
+            } catch (IOException e) {
+                if (running) log("[ERROR] " + e.getMessage());
+            }
+        }, "acceptor").start();
+    }
+
+    private void handleClient(Socket socket) {
+        boolean handshaking = true;
+        try {
+            // Small buffer: it only has to hold the login line, bulk reads go around it
+            InputStream raw = new BufferedInputStream(metrics.countIn(socket.getInputStream()), 256);
+
+            String loginLine;
+            try {
+                loginLine = readLoginLine(raw, socket);
+            } catch (SocketTimeoutException e) {
+                metrics.handshakeTimeouts.increment();
+                loginLine = null;
+            }
+            if (loginLine == null) {
+                socket.close();
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            ClientHandler handler = login(loginLine, new SocketTransport(socket, socket.getOutputStream(), sendExecutor, metrics));
+            handshaking = false;
+            handshakeDone();
+            if (handler == null) return;
+            if (handler.binary) {
+                handler.runBinary(new DataInputStream(raw));
+            } else {
+                handler.run(new BufferedReader(new InputStreamReader(raw, StandardCharsets.UTF_8), ServerConfig.READER_BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            log("[ERROR] Connection error");
+        } finally {
+            if (handshaking) handshakeDone();
+        }
+    }
+
+    // Byte at a time, so nothing past the login line is consumed before the protocol is known.
+    // The whole line has to arrive within the handshake timeout, however slowly it trickles in.
+    private static String readLoginLine(InputStream in, Socket socket) throws IOException {
+        long timeout = ServerConfig.HANDSHAKE_TIMEOUT_MILLIS;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while (true) {
+            if (timeout > 0 && in.available() == 0) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) throw new SocketTimeoutException("Login line timed out");
+                socket.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+            }
+            if ((b = in.read()) == -1 || b == '\n') break;
+            if (line.size() >= ServerConfig.MAX_LINE_LENGTH) return null;
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        String s = line.toString(StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    // Admission: the accept loops take a slot for each new connection, which gives it back once
+    // its login line is handled (or it closes first). False if none came free for a
+    // while, so the caller can check whether it should still be accepting.
+    boolean awaitHandshake() {
+        try {
+            return handshakes.tryAcquire(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void handshakeDone() {
+        handshakes.release();
+    }
+
+    int handshakesInProgress() { return ServerConfig.MAX_HANDSHAKES - handshakes.availablePermits(); }
+
+    // Register a user on any transport; null (and the connection closed) if the name is empty or taken.
+    // The login line is "username" or "username|cap,cap" from clients that support protocol extensions.
+    ClientHandler login(String loginLine, Transport transport) {
+        if (loginLine.startsWith("RESUME:")) return resume(loginLine, transport);
+        String username = loginLine;
+        String caps = "";
+        int bar = loginLine.indexOf('|');
+        if (bar >= 0) {
+            username = loginLine.substring(0, bar);
+            caps = loginLine.substring(bar + 1);
+        }
+        username = username.trim();
+        if (username.isEmpty()) {
+            metrics.loginsRejected.increment();
+            transport.close();
+            return null;
+        }
+        // Claim the name first: of two logins racing for it, exactly one gets past here. Names on
+        // other nodes count too; two nodes racing for the same name is settled in remoteJoined.
+        boolean reserved = reservedNames.add(username);
+        if (!reserved || remoteUsers.containsKey(username)) {
+            if (reserved) reservedNames.remove(username);
+            metrics.loginsRejected.increment();
+            transport.write(Frame.of("ERROR:Username already exists"));
+            transport.close();
+            return null;
+        }
+
+        ClientHandler handler = new ClientHandler(username, transport, caps, nextUserId.incrementAndGet());
+        // Binary clients get one text acknowledgement, then frames only
+        if (handler.binary) transport.write(Frame.of(BinaryProtocol.ACK + handler.id));
+        if (handler.token != null) {
+            sessions.put(handler.token, handler);
+            handler.send("SESSION:" + handler.token);
+        }
+
+        // Replay recent history before the user is visible to broadcast, so nothing is
+        // duplicated or reordered. Only what arrived during the replay is sent under the lock.
+        long replayed = messageHistory.lastSeq();
+        Frame batch = handler.deflate ? replayBatch(replayed) : null;
+        if (batch != null) {
+            handler.write(batch);
+        } else {
+            messageHistory.forEach(0, replayed, ServerConfig.REPLAY_COUNT, handler::send);
+        }
+        // Mail the same way: the bulk of it outside the lock, then whatever was stored meanwhile
+        if (knownUsers.size() < ServerConfig.MAILBOX_USERS) knownUsers.add(username);
+        deliverMail(handler);
+        routeLock.lock();
+        try {
+            messageHistory.forEach(replayed, messageHistory.lastSeq(), ServerConfig.REPLAY_COUNT, handler::send);
+            deliverMail(handler);
+            clients.put(username, handler);
+            clientsById.put(handler.id, handler);
+            // Behind every broadcast already in history, ahead of every later one
+            if (router != null) router.add(handler);
+        } finally {
+            routeLock.unlock();
+        }
+        log("[OK] " + username + " connected");
+        if (cluster != null) {
+            cluster.joined(username, handler.since);
+            settleRival(handler);
+        }
+        announceJoin(handler);
+        return handler;
+    }
+
+    // "RESUME:<token>:<lines or frames received>" from a client whose connection dropped: the
+    // held session takes the new connection and gets only what the client missed. Its name,
+    // rooms and presence never changed, so nothing is re-sent and no one else sees a rejoin.
+    private ClientHandler resume(String loginLine, Transport transport) {
+        String[] parts = loginLine.split(":", 3);
+        ClientHandler handler = parts.length == 3 ? sessions.get(parts[1]) : null;
+        long received = -1;
+        try {
+            if (parts.length == 3) received = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {}
+        int missed = handler == null || received < 0 ? -1 : handler.attach(transport, received);
+        if (missed < 0) {
+            // The client logs in afresh, so a held session can't keep the name from it
+            if (handler != null) handler.disconnect();
+            metrics.loginsRejected.increment();
+            transport.write(Frame.of("ERROR:Session expired"));
+            transport.close();
+            return null;
+        }
+        metrics.resumes.increment();
+        log("[OK] " + handler.username + " resumed, " + missed + " missed messages sent");
+        return handler;
+    }
+
+    // Everything in the user's mailbox, in one write
+    private void deliverMail(ClientHandler handler) {
+        List<Mailboxes.Message> mail;
+        try {
+            mail = mailboxes.take(handler.username);
+        } catch (IOException e) {
+            log("[ERROR] Mailbox for " + handler.username + " lost: " + e.getMessage());
+            return;
+        }
+        if (mail.isEmpty()) return;
+        List<String> lines = new ArrayList<>(mail.size());
+        for (Mailboxes.Message m : mail) lines.add("PRIVATE:" + formatTime(m.time) + ":" + m.sender + ":" + m.text);
+        handler.sendAll(lines);
+        metrics.mailDelivered.add(mail.size());
+        log("[OK] " + handler.username + " received " + mail.size() + " offline messages");
+    }
+
+    // Keep a private message for a recipient who isn't connected anywhere; null once it is
+    // stored, or why it couldn't be. No disk I/O, so callers may hold routeLock.
+    private String storeMail(String recipient, long time, String sender, String msg) {
+        if (ServerConfig.MAILBOX_QUOTA <= 0) return recipient + " is offline";
+        if (!knownUsers.contains(recipient)) {
+            // Past the cap, a name that logged in may still have been left out
+            return knownUsers.size() < ServerConfig.MAILBOX_USERS ? "No such user: " + recipient : recipient + " is offline";
+        }
+        Mailboxes.Result result = mailboxes.store(recipient, time, sender, msg);
+        if (result != Mailboxes.Result.STORED) {
+            metrics.mailRejected.increment();
+            return result == Mailboxes.Result.MAILBOX_FULL ? recipient + "'s mailbox is full" : "Mail storage is full";
+        }
+        metrics.mailStored.increment();
+        return null;
+    }
+
+    int mailboxCount() { return mailboxes.mailboxes(); }
+
+    long mailboxMemoryBytes() { return mailboxes.memoryBytes(); }
+
+    long mailboxSpilledBytes() { return mailboxes.spilledBytes(); }
+
+    private String newToken() {
+        byte[] b = new byte[16];
+        tokens.nextBytes(b);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte x : b) sb.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+        return sb.toString();
+    }
+
+    // History up to seq as one DEFLATED batch for "deflate" clients, or null if it doesn't compress.
+    // Logins before the next broadcast reuse it; it is rebuilt at least once a second so that
+    // entries past the retention window drop out.
+    private Frame replayBatch(long upto) {
+        ReplayBatch last = lastReplay;
+        long now = System.nanoTime();
+        if (last != null && last.upto == upto && now - last.built < 1_000_000_000L) return last.frame;
+        List<Frame> frames = new ArrayList<>();
+        messageHistory.forEach(0, upto, ServerConfig.REPLAY_COUNT, f -> frames.add(f.binaryText()));
+        Frame batch = frames.isEmpty() ? null : Compression.deflate(frames);
+        lastReplay = new ReplayBatch(upto, now, batch);
+        return batch;
+    }
+
+    private static final class ReplayBatch {
+        final long upto;
+        final long built;
+        final Frame frame;
+
+        ReplayBatch(long upto, long built, Frame frame) {
+            this.upto = upto; this.built = built; this.frame = frame;
+        }
+    }
+
+    // Broadcast to all users, here and on every other node
+    public void broadcast(String msg, String sender) {
+        routeLock.lock();
+        try {
+            long time = now();
+            fanOut(time, sender, msg);
+            metrics.broadcasts.increment();
+            if (cluster != null) cluster.broadcast(sender, time, msg);
+        } finally {
+            routeLock.unlock();
+        }
+        // Shard backpressure, only once the lock is free for other senders
+        if (router != null) router.awaitCapacity();
+    }
+
+    // A broadcast relayed from the node its sender is on
+    void remoteBroadcast(String sender, long time, String msg) {
+        routeLock.lock();
+        try {
+            fanOut(time, sender, msg);
+        } finally {
+            routeLock.unlock();
+        }
+        if (router != null) router.awaitCapacity();
+    }
+
+    // Caller holds routeLock
+    private void fanOut(long time, String sender, String msg) {
+        long start = System.nanoTime();
+        String full = formatBroadcast(formatTime(time), sender, msg);
+        log(full);
+        if (journal != null) journal.append(Journal.BROADCAST, time, sender, null, msg);
+        if (search != null) search.add(time, sender, null, msg);
+        // Encoded once per protocol; every recipient and the history share the same bytes
+        Frame frame = Frame.of(full);
+        Frame binary = null;
+        messageHistory.add(frame, time);
+        int from = userId(sender);
+        if (router != null) {
+            // The shards deliver it, in parallel; only the hand-off is under the lock
+            router.broadcast(frame, BinaryProtocol.message(BinaryProtocol.MESSAGE, from, time, msg));
+            return;
+        }
+        for (ClientHandler c : clients.values()) {
+            if (c.binary && binary == null) {
+                binary = BinaryProtocol.message(BinaryProtocol.MESSAGE, from, time, msg);
+            }
+            c.send(frame, binary);
+        }
+        metrics.fanout.record(System.nanoTime() - start);
+    }
+
+    private String formatTime(long time) {
+        return Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).format(formatter);
+    }
+
+    // Binary protocol id of a local or remote user, 0 if unknown
+    private int userId(String username) {
+        ClientHandler local = clients.get(username);
+        if (local != null) return local.id;
+        RemoteUser remote = remoteUsers.get(username);
+        return remote == null ? 0 : remote.id;
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    // Everything a user sends ends up in some text client's line; a line break in it (binary
+    // frames may carry any, text lines a stray \r) would let the sender forge protocol lines
+    private static String oneLine(String text) {
+        return text.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String formatBroadcast(String time, String sender, String msg) {
+        return "[" + time + "] " + sender + ": " + msg;
+    }
+
+    // Send private message to specific user
+    public void sendPrivate(String msg, String sender, String recipient) {
+        // With shards, the recipient's shard orders its messages; no global lock is needed
+        if (router == null) routeLock.lock();
+        try {
+            // One clock reading for the display, the journal, search and the recipient
+            long now = now();
+            String time = formatTime(now);
+            String full = "[" + time + "] " + sender + " to " + recipient + ": " + msg;
+            log(full + " (private)");
+            if (journal != null) journal.append(Journal.PRIVATE, now, sender, recipient, msg);
+            if (search != null) search.add(now, sender, recipient, msg);
+            metrics.privates.increment();
+
+            ClientHandler recipientHandler = clients.get(recipient);
+            ClientHandler senderHandler = clients.get(sender);
+            RemoteUser remote = recipientHandler == null ? remoteUsers.get(recipient) : null;
+
+            // Send to recipient, directly to its node if it is logged in elsewhere
+            if (remote != null && cluster != null) {
+                if (!cluster.sendPrivate(remote.node, sender, recipient, now, msg)) {
+                    // Its node isn't connected: kept here if the user has a mailbox here, and
+                    // either way the sender doesn't get SENT for a message that went nowhere
+                    String error = knownUsers.contains(recipient)
+                        ? storeMail(recipient, now, sender, msg)
+                        : recipient + "'s server is unreachable";
+                    notDelivered(senderHandler, error, time, recipient, msg);
+                    return;
+                }
+            } else if (recipientHandler != null) {
+                deliverPrivate(recipientHandler, senderHandler == null ? 0 : senderHandler.id, now, time, sender, msg);
+            } else {
+                // Not connected anywhere: held for the recipient's next login, and the sender
+                // is told so rather than getting SENT
+                notDelivered(senderHandler, storeMailOrDeliver(recipient, now, sender, msg), time, recipient, msg);
+                return;
+            }
+
+            // Send confirmation to sender
+            if (senderHandler != null) {
+                if (senderHandler.binary) {
+                    int to = userId(recipient);
+                    route(senderHandler, null, BinaryProtocol.message(BinaryProtocol.SENT, to, now, msg));
+                } else {
+                    route(senderHandler, Frame.of("SENT:" + time + ":" + recipient + ":" + msg), null);
+                }
+            }
+
+        } finally {
+            if (router == null) routeLock.unlock();
+        }
+    }
+
+    // QUEUED when the message was kept in a mailbox, otherwise ERROR with why it wasn't
+    private void notDelivered(ClientHandler senderHandler, String error, String time, String recipient, String msg) {
+        if (senderHandler == null) return;
+        Frame reply = Frame.of(error != null ? "ERROR:" + error : "QUEUED:" + time + ":" + recipient + ":" + msg);
+        // Binary clients get it as a TEXT frame
+        route(senderHandler, reply, reply.binaryText());
+    }
+
+    private void deliverPrivate(ClientHandler to, int from, long time, String formattedTime, String sender, String msg) {
+        if (to.binary) {
+            route(to, null, BinaryProtocol.message(BinaryProtocol.PRIVATE, from, time, msg));
+        } else {
+            route(to, Frame.of("PRIVATE:" + formattedTime + ":" + sender + ":" + msg), null);
+        }
+    }
+
+    // Through the user's shard, or straight to it without shards. A null text frame is fine for
+    // a binary client, and the other way round.
+    private void route(ClientHandler c, Frame text, Frame binary) {
+        if (router != null) {
+            router.send(c, text, binary);
+            // Under routeLock the wait would hold up every sender; the next broadcast waits instead
+            if (!routeLock.isHeldByCurrentThread()) router.awaitCapacity(c);
+        } else {
+            c.send(text, binary);
+        }
+    }
+
+    // For a recipient found offline. Its login may have got in since; logins take routeLock for
+    // their last look at the mailbox, so taking it here means a message is either in that look
+    // or goes to the client like any other.
+    private String storeMailOrDeliver(String recipient, long time, String sender, String msg) {
+        if (router == null) return storeMail(recipient, time, sender, msg);
+        routeLock.lock();
+        try {
+            ClientHandler online = clients.get(recipient);
+            if (online == null) return storeMail(recipient, time, sender, msg);
+            deliverPrivate(online, userId(sender), time, formatTime(time), sender, msg);
+            return null;
+        } finally {
+            routeLock.unlock();
+        }
+    }
+
+    // A private message forwarded by the sender's node to this one, which holds the recipient
+    void remotePrivate(String sender, String recipient, long time, String msg) {
+        if (router == null) routeLock.lock();
+        try {
+            ClientHandler recipientHandler = clients.get(recipient);
+            log("[" + formatTime(time) + "] " + sender + " to " + recipient + ": " + msg + " (private, relayed)");
+            if (search != null) search.add(time, sender, recipient, msg);
+            // Left after the sender's node last heard of it
+            if (recipientHandler == null) {
+                storeMailOrDeliver(recipient, time, sender, msg);
+                return;
+            }
+            deliverPrivate(recipientHandler, userId(sender), time, formatTime(time), sender, msg);
+        } finally {
+            if (router == null) routeLock.unlock();
+        }
+    }
+
+    // --- search ---
+
+    // One page of the messages matching the query that the user may see, newest first, in one
+    // write: "FOUND:<epoch millis>:<sender>:<recipient, empty for a broadcast>:<text>" per hit,
+    // then "RESULTS:<page>:<total matches>:<hits on this page>". Page 0 is the newest.
+    void search(ClientHandler handler, int page, String text) {
+        if (search == null) {
+            handler.send("ERROR:Search is off");
+            return;
+        }
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(text);
+        } catch (IllegalArgumentException e) {
+            handler.send("ERROR:" + e.getMessage());
+            return;
+        }
+        if (query.empty()) {
+            handler.send("ERROR:Empty search");
+            return;
+        }
+        if (page < 0 || page > SearchIndex.maxPage(ServerConfig.SEARCH_PAGE_SIZE)) {
+            handler.send("ERROR:No such page");
+            return;
+        }
+        long start = System.nanoTime();
+        SearchIndex.Page result = search.search(query, handler.username, page, ServerConfig.SEARCH_PAGE_SIZE);
+        metrics.search.record(System.nanoTime() - start);
+        List<String> lines = new ArrayList<>(result.hits.size() + 1);
+        for (SearchIndex.Hit hit : result.hits) {
+            // One line per hit, whatever the protocol
+            lines.add("FOUND:" + hit.time + ":" + hit.sender + ":" + (hit.recipient == null ? "" : hit.recipient)
+                      + ":" + oneLine(hit.text));
+        }
+        lines.add("RESULTS:" + page + ":" + result.total + ":" + result.hits.size());
+        handler.sendAll(lines);
+    }
+
+    long searchIndexed() { return search == null ? 0 : search.indexed(); }
+
+    int searchQueued() { return search == null ? 0 : search.queued(); }
+
+    long searchDropped() { return search == null ? 0 : search.dropped(); }
+
+    int journalQueued() { return journal == null ? 0 : journal.queued(); }
+
+    long journalDropped() { return journal == null ? 0 : journal.dropped(); }
+
+    // --- rooms ---
+
+    // Subscribe a local client; the room is created by its first member
+    void joinRoom(ClientHandler member, String name) {
+        if (!Room.validName(name)) return;
+        rooms.compute(name, (k, room) -> {
+            if (room == null) room = new Room(k);
+            room.members.add(member);
+            return room;
+        });
+        if (member.rooms.add(name)) log("[ROOM] " + member.username + " joined #" + name);
+        // Disconnected meanwhile: removeClient may already have walked its rooms
+        if (!member.active) {
+            leaveRoom(member, name, false);
+            return;
+        }
+        member.send("JOINEDROOM:" + name);
+    }
+
+    // Unsubscribe; the room goes away with its last local member
+    void leaveRoom(ClientHandler member, String name, boolean notify) {
+        if (!member.rooms.remove(name)) return;
+        rooms.computeIfPresent(name, (k, room) -> {
+            room.members.remove(member);
+            return room.members.isEmpty() ? null : room;
+        });
+        log("[ROOM] " + member.username + " left #" + name);
+        if (notify) member.send("LEFTROOM:" + name);
+    }
+
+    // Only members may post; the message reaches this room's members here and on other nodes
+    void roomMessage(String name, String msg, ClientHandler sender) {
+        Room room = rooms.get(name);
+        if (room == null || !sender.rooms.contains(name)) return;
+        long time = now();
+        metrics.roomMessages.increment();
+        if (journal != null) journal.append(Journal.ROOM, time, sender.username, name, msg);
+        roomFanOut(room, time, sender.username, msg);
+        if (cluster != null) cluster.roomMessage(sender.username, name, time, msg);
+    }
+
+    void remoteRoomMessage(String sender, String name, long time, String msg) {
+        Room room = rooms.get(name);
+        if (room != null) roomFanOut(room, time, sender, msg);
+    }
+
+    // Cost is the room's size, not the number of connections
+    private void roomFanOut(Room room, long time, String sender, String msg) {
+        room.lock.lock();
+        try {
+            String full = formatBroadcast(formatTime(time), sender, msg);
+            log("#" + room.name + " " + full);
+            Frame frame = Frame.of("ROOM:" + room.name + ":" + full);
+            Frame binary = null;
+            for (ClientHandler c : room.members) {
+                if (c.binary && binary == null) {
+                    binary = BinaryProtocol.roomMessage(userId(sender), time, room.name, msg);
+                }
+                c.send(frame, binary);
+            }
+        } finally {
+            room.lock.unlock();
+        }
+    }
+
+    int roomCount() { return rooms.size(); }
+
+    // --- cluster directory: users on other nodes, kept current by their JOIN/LEAVE/SYNC records ---
+
+    // Local users and their login times, for a SYNC to a peer
+    Map<String, Long> localUsers() {
+        Map<String, Long> users = new HashMap<>();
+        for (ClientHandler c : clients.values()) users.put(c.username, c.since);
+        return users;
+    }
+
+    // Two nodes can accept the same name at almost the same moment. Every node settles it the
+    // same way, earliest login first and then the lower node id, so the loser's own node
+    // disconnects its user and the cluster converges on a single owner.
+    void remoteJoined(String node, String username, long since) {
+        presenceLock.lock();
+        try {
+            ClientHandler local = clients.get(username);
+            if (local != null) {
+                if (wins(local.since, cluster.nodeId(), since, node)) return;
+                log("[WARN] " + username + " also logged in on " + node + ", disconnecting the local session");
+                local.send("ERROR:Username already exists");
+                local.disconnect();
+            }
+            RemoteUser existing = remoteUsers.get(username);
+            if (existing != null) {
+                if (existing.node.equals(node) && existing.since == since) return;
+                if (!existing.node.equals(node) && wins(existing.since, existing.node, since, node)) return;
+                dropRemote(existing);
+            }
+            RemoteUser user = new RemoteUser(username, nextUserId.incrementAndGet(), node, since);
+            remoteUsers.put(username, user);
+            remoteById.put(user.id, user);
+            log("[OK] " + username + " connected on " + node);
+            announceJoin(user);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // The same name can come in from another node while a login here holds it but isn't in
+    // clients yet. Once it is, settle that the way remoteJoined would have.
+    private void settleRival(ClientHandler local) {
+        presenceLock.lock();
+        try {
+            RemoteUser rival = remoteUsers.get(local.username);
+            if (rival == null || clients.get(local.username) != local) return;
+            if (wins(local.since, cluster.nodeId(), rival.since, rival.node)) {
+                // Its own node disconnects it; its LEAVE will find nothing to drop
+                dropRemote(rival);
+            } else {
+                log("[WARN] " + local.username + " also logged in on " + rival.node + ", disconnecting the local session");
+                local.send("ERROR:Username already exists");
+                local.disconnect();
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    void remoteLeft(String node, String username) {
+        presenceLock.lock();
+        try {
+            RemoteUser user = remoteUsers.get(username);
+            if (user != null && user.node.equals(node)) dropRemote(user);
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Full user list of a node after it (re)connected: anything it no longer has is gone
+    void nodeSynced(String node, Map<String, Long> users) {
+        presenceLock.lock();
+        try {
+            for (RemoteUser user : remoteUsers.values()) {
+                if (user.node.equals(node) && !users.containsKey(user.username)) dropRemote(user);
+            }
+            for (Map.Entry<String, Long> u : users.entrySet()) remoteJoined(node, u.getKey(), u.getValue());
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    void nodeLost(String node) {
+        presenceLock.lock();
+        try {
+            for (RemoteUser user : remoteUsers.values()) {
+                if (user.node.equals(node)) dropRemote(user);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Caller holds presenceLock
+    private void dropRemote(RemoteUser user) {
+        if (!remoteUsers.remove(user.username, user)) return;
+        remoteById.remove(user.id);
+        log("[EXIT] " + user.username + " disconnected from " + user.node);
+        announceLeave(user);
+    }
+
+    private static boolean wins(long since, String node, long otherSince, String otherNode) {
+        return since != otherSince ? since < otherSince : node.compareTo(otherNode) < 0;
+    }
+
+    // New user gets one versioned SNAPSHOT at once; everyone gets a small JOIN delta with the
+    // next presence flush. Legacy clients without the "presence" capability get the full USERS
+    // list instead, once per flush however many users came and went.
+    private void announceJoin(User joined) {
+        presenceLock.lock();
+        try {
+            // Already gone again: its LEAVE is (or will be) announced, so say nothing
+            if (clients.get(joined.username()) != joined && remoteUsers.get(joined.username()) != joined) return;
+            long version = ++presenceVersion;
+            if (joined instanceof ClientHandler) {
+                ClientHandler local = (ClientHandler) joined;
+                if (local.binary) {
+                    List<User> users = allUsers();
+                    local.send(null, BinaryProtocol.snapshot(version, users, users.size()));
+                } else if (local.presenceDeltas) {
+                    List<String> users = allUsernames();
+                    local.send("SNAPSHOT:" + version + ":" + users.size() + ":" + String.join(",", users));
+                }
+            }
+            // The new user gets this too, and ignores it: it is no newer than the snapshot
+            queuePresence("JOIN:" + version + ":" + joined.username(), BinaryProtocol.join(version, joined.id(), joined.username()));
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    private void announceLeave(User left) {
+        presenceLock.lock();
+        try {
+            long version = ++presenceVersion;
+            queuePresence("LEAVE:" + version + ":" + left.username(), BinaryProtocol.leave(version, left.id()));
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Caller holds presenceLock. During a login storm every login would otherwise cost a frame
+    // (or a whole user list) for every client; gathered up, each client gets one write per flush.
+    private void queuePresence(String line, Frame binaryDelta) {
+        presenceLines.add(line);
+        presenceFrames.add(binaryDelta);
+        if (ServerConfig.PRESENCE_COALESCE_MILLIS <= 0) {
+            flushPresence();
+        } else if (!presenceFlushDue) {
+            presenceFlushDue = true;
+            timers.schedule(this::flushPresence, ServerConfig.PRESENCE_COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Every queued delta, encoded once for each protocol and shared by all clients
+    private void flushPresence() {
+        presenceLock.lock();
+        try {
+            presenceFlushDue = false;
+            // A send can disconnect a client, and its LEAVE is queued on this thread (presenceLock
+            // is reentrant): it waits for this batch to go out to everyone, then goes in the next
+            if (presenceFlushing) return;
+            presenceFlushing = true;
+            try {
+                while (!presenceLines.isEmpty()) {
+                    List<String> lines = presenceLines;
+                    List<Frame> frames = presenceFrames;
+                    presenceLines = new ArrayList<>();
+                    presenceFrames = new ArrayList<>();
+                    sendPresence(lines, frames);
+                }
+            } finally {
+                presenceFlushing = false;
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    private void sendPresence(List<String> lines, List<Frame> frames) {
+        int count = lines.size();
+        Frame text = Frame.of(String.join("\n", lines));
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        try {
+            for (Frame f : frames) f.writeTo(joined);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Frame binaryFrames = Frame.ofBytes(joined.toByteArray());
+        // The rest only once someone needs them
+        Frame deflated = null;
+        boolean compressed = false;
+        Frame legacy = null;
+        for (ClientHandler c : clients.values()) {
+            if (!c.presenceDeltas) {
+                if (legacy == null) legacy = usersFrame();
+                c.send(legacy);
+                continue;
+            }
+            if (c.deflate && !compressed) {
+                deflated = Compression.deflate(frames);
+                compressed = true;
+            }
+            c.sendBatch(text, binaryFrames, count, deflated);
+        }
+    }
+
+    // Full user list in the original USERS:count:a,b,c form
+    private Frame usersFrame() {
+        List<String> users = allUsernames();
+        return Frame.of("USERS:" + users.size() + ":" + String.join(",", users));
+    }
+
+    // Everyone in the cluster: local clients first, then the directory
+    private List<User> allUsers() {
+        ArrayList<User> users = new ArrayList<>(clients.values());
+        users.addAll(remoteUsers.values());
+        return users;
+    }
+
+    private List<String> allUsernames() {
+        ArrayList<String> users = new ArrayList<>(clients.keySet());
+        users.addAll(remoteUsers.keySet());
+        return users;
+    }
+
+    public void removeClient(String username) {
+        ClientHandler removed = clients.remove(username);
+        if (removed != null) {
+            clientsById.remove(removed.id);
+            if (router != null) router.remove(removed);
+            for (String room : removed.rooms) leaveRoom(removed, room, false);
+            if (removed.token != null) sessions.remove(removed.token);
+            Transport t = removed.transport;
+            if (t != null) metrics.droppedClosed.add(t.dropped());
+            log("[EXIT] " + username + " disconnected");
+            if (cluster != null) cluster.left(username);
+            announceLeave(removed);
+            // Only now can the name be claimed again, so its next owner's JOIN follows this LEAVE
+            reservedNames.remove(username);
+        }
+    }
+
+    void logError(String msg) {
+        log("[ERROR] " + msg);
+    }
+
+    private void log(String msg) {
+        serverLog.add(msg);
+    }
+
+    ServerLog log() { return serverLog; }
+
+    long totalMessages() { return metrics.getMessagesIn(); }
+
+    Metrics metrics() { return metrics; }
+
+    // Outbound side of every logged-in client, for gauges
+    void forEachTransport(Consumer<Transport> action) {
+        for (ClientHandler c : clients.values()) {
+            Transport t = c.transport;
+            if (t != null) action.accept(t);
+        }
+    }
+
+    int clientCount() { return clients.size(); }
+
+    long routeQueued() { return router == null ? 0 : router.queued(); }
+
+    // Sessions kept through the grace period with no connection
+    int heldSessions() {
+        int n = 0;
+        for (ClientHandler c : clients.values()) if (c.transport == null) n++;
+        return n;
+    }
+
+    class ClientHandler implements User {
+        private final String username;
+        // Null while a resumable session is held without a connection
+        private volatile Transport transport;
+        private final int id;
+        // Place in its routing shard's member list; that shard's thread only
+        int shardSlot = -1;
+        // Login time; decides which node keeps a name claimed on two nodes at once
+        private final long since = System.currentTimeMillis();
+        // Client speaks BinaryProtocol frames after login
+        private final boolean binary;
+        // Client applies JOIN/LEAVE deltas instead of full USERS lists
+        private final boolean presenceDeltas;
+        // Binary client that inflates DEFLATED frames
+        private final boolean deflate;
+        private volatile boolean active = true;
+        // Rooms this client is subscribed to
+        private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+        // Inbound limits; null when that limit is off
+        private final TokenBucket userBucket;
+        private final TokenBucket addressBucket;
+        private boolean throttleLogged;
+        // Resumable sessions ("resume" capability) only: token, what was sent, and a lock that
+        // keeps buffer order and wire order the same and hands the session between connections
+        private final String token;
+        private final ResumeBuffer sent;
+        private final ReentrantLock sessionLock = new ReentrantLock();
+        // Bumped on every lost connection, so a stale expiry doesn't end a resumed session
+        private int detaches;
+
+        public ClientHandler(String u, Transport t, String caps, int i) {
+            username = u; transport = t; id = i;
+            List<String> c = Arrays.asList(caps.split(","));
+            binary = c.contains("binary");
+            presenceDeltas = binary || c.contains("presence");
+            deflate = binary && ServerConfig.COMPRESS && c.contains("deflate");
+            userBucket = limiter.forUser();
+            addressBucket = limiter.forAddress(t.address());
+            boolean resumable = c.contains("resume") && ServerConfig.RESUME_GRACE_MILLIS > 0;
+            token = resumable ? newToken() : null;
+            sent = resumable ? new ResumeBuffer(ServerConfig.RESUME_BUFFER) : null;
+        }
+
+        public String username() { return username; }
+
+        public int id() { return id; }
+
+        boolean binary() { return binary; }
+
+        // Blocking mode: read lines on the calling thread until the client leaves
+        public void run(BufferedReader in) {
+            Transport t = transport;
+            boolean exit = false;
+            try {
+                String msg;
+                while (active && (msg = in.readLine()) != null) {
+                    awaitAdmission();
+                    if (!onLine(msg)) {
+                        exit = true;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+            } finally {
+                try { in.close(); } catch (IOException e) {}
+                if (exit) disconnect(); else connectionLost(t);
+            }
+        }
+
+        // Blocking mode, binary protocol: one length-prefixed frame at a time into a reused buffer
+        void runBinary(DataInputStream in) {
+            Transport t = transport;
+            boolean exit = false;
+            byte[] buf = new byte[256];
+            try {
+                while (active) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > ServerConfig.MAX_LINE_LENGTH) break;
+                    if (length > buf.length) buf = new byte[length];
+                    in.readFully(buf, 0, length);
+                    awaitAdmission();
+                    if (!onFrame(ByteBuffer.wrap(buf, 0, length))) {
+                        exit = true;
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+            } finally {
+                try { in.close(); } catch (IOException e) {}
+                if (exit) disconnect(); else connectionLost(t);
+            }
+        }
+
+        // 0 if the next inbound message may be handled now, otherwise nanoseconds until it may.
+        // The address bucket goes first so a user over its own limit doesn't drain the shared one.
+        long admit() {
+            long now = System.nanoTime();
+            if (addressBucket != null) {
+                long wait = addressBucket.take(now);
+                if (wait > 0) return throttled(metrics.throttledAddress, wait);
+            }
+            if (userBucket != null) {
+                long wait = userBucket.take(now);
+                if (wait > 0) {
+                    if (addressBucket != null) addressBucket.refund();
+                    return throttled(metrics.throttledUser, wait);
+                }
+            }
+            return 0;
+        }
+
+        private long throttled(LongAdder counter, long wait) {
+            counter.increment();
+            if (!throttleLogged) {
+                throttleLogged = true;
+                log("[WARN] " + username + " is over its message rate, slowing its reads");
+            }
+            return wait;
+        }
+
+        // Blocking modes: park the reader until admitted. Nothing is read meanwhile, so the
+        // socket's receive buffer fills and TCP flow control holds the sender back.
+        private void awaitAdmission() {
+            long wait;
+            while (active && (wait = admit()) > 0) LockSupport.parkNanos(wait);
+        }
+
+        // Handle one binary frame (opcode + body); false once the client has asked to leave, or
+        // sent a frame too short for what it declares, which ends only that connection
+        boolean onFrame(ByteBuffer frame) {
+            byte opcode = frame.get();
+            if (opcode == BinaryProtocol.SAY) {
+                broadcast(oneLine(BinaryProtocol.remainingText(frame)), username);
+            } else if (opcode == BinaryProtocol.WHISPER && frame.remaining() >= 4) {
+                int to = frame.getInt();
+                User recipient = clientsById.containsKey(to) ? clientsById.get(to) : remoteById.get(to);
+                String message = oneLine(BinaryProtocol.remainingText(frame));
+                if (recipient != null) sendPrivate(message, username, recipient.username());
+            } else if (opcode == BinaryProtocol.ROOM_SAY) {
+                String room = BinaryProtocol.shortText(frame);
+                if (room == null) return false;
+                roomMessage(room, oneLine(BinaryProtocol.remainingText(frame)), this);
+            } else if (opcode == BinaryProtocol.ROOM_JOIN) {
+                joinRoom(this, BinaryProtocol.remainingText(frame));
+            } else if (opcode == BinaryProtocol.ROOM_LEAVE) {
+                leaveRoom(this, BinaryProtocol.remainingText(frame), true);
+            } else if (opcode == BinaryProtocol.SEARCH && frame.remaining() >= 4) {
+                int page = frame.getInt();
+                search(this, page, BinaryProtocol.remainingText(frame));
+            } else if (opcode == BinaryProtocol.EXIT) {
+                return false;
+            }
+            return true;
+        }
+
+        // Handle one inbound line; false once the client has asked to leave
+        boolean onLine(String msg) {
+            if (msg.startsWith("EXIT")) return false;
+            // NIO framing splits on \n only; a stray \r is a line break to readLine clients
+            msg = oneLine(msg);
+
+            // Check if it's a private message
+            if (msg.startsWith("PRIVATE:")) {
+                String[] parts = msg.split(":", 3);
+                if (parts.length == 3) {
+                    String recipient = parts[1];
+                    String message = parts[2];
+                    sendPrivate(message, username, recipient);
+                }
+            } else if (msg.startsWith("ROOM:")) {
+                String[] parts = msg.split(":", 3);
+                if (parts.length == 3) roomMessage(parts[1], parts[2], this);
+            } else if (msg.startsWith("JOINROOM:")) {
+                joinRoom(this, msg.substring("JOINROOM:".length()));
+            } else if (msg.startsWith("LEAVEROOM:")) {
+                leaveRoom(this, msg.substring("LEAVEROOM:".length()), true);
+            } else if (msg.startsWith("SEARCH:")) {
+                // SEARCH:<page>:<query>
+                String[] parts = msg.split(":", 3);
+                int page = -1;
+                try {
+                    if (parts.length == 3) page = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {}
+                if (page >= 0) search(this, page, parts[2]); else send("ERROR:Bad search");
+            } else {
+                broadcast(msg, username);
+            }
+            return true;
+        }
+
+        public void send(String msg) { send(Frame.of(msg)); }
+
+        // A text-protocol frame; binary clients get it wrapped in a TEXT frame
+        public void send(Frame frame) {
+            write(binary ? packed(frame.binaryText()) : frame);
+        }
+
+        // The same message pre-encoded for each protocol
+        void send(Frame text, Frame binaryFrame) {
+            write(binary ? packed(binaryFrame) : text);
+        }
+
+        // Compressed once per frame and shared, however many "deflate" clients it goes to
+        private Frame packed(Frame binaryFrame) {
+            return deflate ? binaryFrame.deflated() : binaryFrame;
+        }
+
+        // A batch encoded once for all clients: text lines in one frame, or count binary frames
+        // back to back, or those frames as one DEFLATED frame (null when that isn't smaller)
+        void sendBatch(Frame text, Frame binaryFrames, int count, Frame deflated) {
+            if (!binary) {
+                write(text);
+            } else if (deflate && deflated != null) {
+                write(deflated, 1);
+            } else {
+                write(binaryFrames, count);
+            }
+        }
+
+        // Several text lines in one write: a single frame for text clients, their TEXT frames
+        // back to back (or one DEFLATED batch) for binary ones
+        void sendAll(List<String> lines) {
+            if (lines.isEmpty()) return;
+            if (!binary) {
+                write(Frame.of(String.join("\n", lines)));
+                return;
+            }
+            List<Frame> frames = new ArrayList<>(lines.size());
+            for (String line : lines) frames.add(Frame.of(line).binaryText());
+            Frame batch = deflate ? Compression.deflate(frames) : null;
+            if (batch != null) {
+                write(batch, 1);
+                return;
+            }
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            try {
+                for (Frame f : frames) f.writeTo(joined);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            write(Frame.ofBytes(joined.toByteArray()), frames.size());
+        }
+
+        // Only a resumable session needs the line count, so only it pays for it
+        private void write(Frame frame) {
+            write(frame, binary || sent == null ? 1 : frame.lines());
+        }
+
+        // Only enqueues; the transport's writer does the socket I/O. Units are what the client
+        // counts for this frame, for resumption.
+        private void write(Frame frame, int units) {
+            Transport t = transport;
+            if (sent != null) {
+                sessionLock.lock();
+                try {
+                    sent.add(frame, units);
+                    t = transport;
+                    if (t == null || t.write(frame)) return;
+                } finally {
+                    sessionLock.unlock();
+                }
+            } else if (t.write(frame)) {
+                return;
+            }
+            // Outside the session lock: disconnecting sends LEAVE to everyone else
+            log("[WARN] " + username + " is not keeping up, disconnecting");
+            metrics.slowConsumers.increment();
+            t.abort();
+            disconnect();
+        }
+
+        // Take over a new connection and send it what the client missed; the number of missed
+        // messages, or -1 if the session ended or its buffer no longer reaches back far enough
+        int attach(Transport t, long received) {
+            Transport old;
+            int missed;
+            sessionLock.lock();
+            try {
+                if (!active || sent == null) return -1;
+                // Frames the old queue dropped never reached the client nor the count it reports
+                old = transport;
+                if (old != null && old.dropped() > 0) return -1;
+                List<Frame> frames = sent.after(received);
+                if (frames == null) return -1;
+                transport = t;
+                detaches++;
+                t.write(Frame.of("RESUMED:" + id));
+                for (Frame f : frames) t.write(f);
+                missed = frames.size();
+            } finally {
+                sessionLock.unlock();
+            }
+            // The client reconnected before this side noticed the old connection was gone
+            if (old != null) old.abort();
+            return missed;
+        }
+
+        // The connection dropped without EXIT. A resumable session is held for the grace period,
+        // collecting what is sent to it; otherwise the client is gone.
+        void connectionLost(Transport t) {
+            int epoch;
+            sessionLock.lock();
+            try {
+                if (!active || transport != t) return;
+                if (sent == null || t.dropped() > 0) {
+                    epoch = -1;
+                } else {
+                    transport = null;
+                    epoch = ++detaches;
+                }
+            } finally {
+                sessionLock.unlock();
+            }
+            if (epoch < 0) {
+                disconnect();
+                return;
+            }
+            log("[WARN] " + username + " lost connection, holding the session for "
+                + ServerConfig.RESUME_GRACE_MILLIS / 1000 + "s");
+            timers.schedule(() -> expire(epoch), ServerConfig.RESUME_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void expire(int epoch) {
+            sessionLock.lock();
+            try {
+                if (detaches != epoch || transport != null) return;
+            } finally {
+                sessionLock.unlock();
+            }
+            disconnect();
+        }
+
+        void disconnect() {
+            Transport t;
+            sessionLock.lock();
+            try {
+                if (!active) return;
+                active = false;
+                t = transport;
+            } finally {
+                sessionLock.unlock();
+            }
+            if (t != null) t.close();
+            removeClient(username);
+        }
+    }
+}
@@ -1,27 +1,30 @@
 package el;
 
 import javax.swing.*;
-import java.io.*;
-import java.net.*;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.*;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
 
+// Optional window onto a running core: a Swing timer samples new log lines and the
+// counters a few times a second, so the EDT does a bounded amount of work at any message rate
 public class ChatServer extends JFrame {
-    private static final int PORT = 12345;
-    private ServerSocket serverSocket;
-    private ConcurrentHashMap<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private ArrayList<String> messageHistory = new ArrayList<>();
+    private static final long serialVersionUID = 1L;
+    private static final int PORT = ServerConfig.PORT;
+    private final ChatCore core;
+    private final List<String> pending = new ArrayList<>();
+    private long logPosition;
+    private String lastStats = "";
     private JTextArea console;
     private JLabel statusLabel, statsLabel;
-    private int totalMessages = 0;
-    private volatile boolean running = true;
-    private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm:ss");
 
     public ChatServer() {
+        this(new ChatCore());
+        core.start();
+    }
+
+    ChatServer(ChatCore core) {
+        this.core = core;
         setupUI();
-        startServer();
+        new Timer(ServerConfig.VIEW_REFRESH_MILLIS, e -> refresh()).start();
     }
 
     private void setupUI() {
@@ -61,168 +64,42 @@ public class ChatServer extends JFrame {
         setVisible(true);
     }
 
-    private void startServer() {
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(PORT);
-                log("[OK] Server started on port " + PORT);
-                while (running) {
-                    Socket socket = serverSocket.accept();
-                    new Thread(() -> handleClient(socket)).start();
-                }
-            } catch (IOException e) {
-                if (running) log("[ERROR] " + e.getMessage());
-            }
-        }).start();
-    }
-
-    private void handleClient(Socket socket) {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-            String username = in.readLine();
-            if (username == null || username.trim().isEmpty()) {
-                socket.close();
-                return;
-            }
-
-            username = username.trim();
-
-            // Check if username exists
-            if (clients.containsKey(username)) {
-                out.println("ERROR:Username already exists");
-                socket.close();
-                return;
-            }
-
-            ClientHandler handler = new ClientHandler(socket, username, in, out);
-            clients.put(username, handler);
-            log("[OK] " + username + " connected");
-            broadcastUsers();
-            updateStats();
-            handler.run();
-        } catch (IOException e) {
-            log("[ERROR] Connection error");
-        }
-    }
-
-    // Broadcast to all users
-    public void broadcast(String msg, String sender) {
-        synchronized (messageHistory) {
-            String time = LocalTime.now().format(formatter);
-            String full = "[" + time + "] " + sender + ": " + msg;
-            log(full);
-            messageHistory.add(full);
-            totalMessages++;
-            clients.values().forEach(c -> c.send(full));
-            updateStats();
-        }
-    }
-
-    // Send private message to specific user
-    public void sendPrivate(String msg, String sender, String recipient) {
-        synchronized (messageHistory) {
-            String time = LocalTime.now().format(formatter);
-            String full = "[" + time + "] " + sender + " to " + recipient + ": " + msg;
-            log(full + " (private)");
-            totalMessages++;
-
-            // Send to recipient
-            ClientHandler recipientHandler = clients.get(recipient);
-            if (recipientHandler != null) {
-                recipientHandler.send("PRIVATE:" + time + ":" + sender + ":" + msg);
-            }
-
-            // Send confirmation to sender
-            ClientHandler senderHandler = clients.get(sender);
-            if (senderHandler != null) {
-                senderHandler.send("SENT:" + time + ":" + recipient + ":" + msg);
-            }
-
-            updateStats();
-        }
-    }
-
-    public void broadcastUsers() {
-        synchronized (clients) {
-            Set<String> users = clients.keySet();
-            String userList = String.join(",", users);
-            clients.values().forEach(c -> c.sendUsers(new ArrayList<>(users)));
-            updateStats();
-        }
-    }
-
-    public void removeClient(String username) {
-        if (clients.remove(username) != null) {
-            log("[EXIT] " + username + " disconnected");
-            broadcastUsers();
-            updateStats();
-        }
-    }
-
-    private void log(String msg) {
-        SwingUtilities.invokeLater(() -> {
-            console.append(msg + "\n");
+    // One append and one label update per tick, however many lines arrived since the last one
+    private void refresh() {
+        pending.clear();
+        logPosition = core.log().read(logPosition, pending, ServerConfig.CONSOLE_LINES);
+        if (!pending.isEmpty()) {
+            StringBuilder text = new StringBuilder();
+            for (String line : pending) text.append(line).append('\n');
+            console.append(text.toString());
+            trimConsole();
             console.setCaretPosition(console.getDocument().getLength());
-        });
-    }
-
-    private void updateStats() {
-        SwingUtilities.invokeLater(() -> 
-            statsLabel.setText("Messages: " + totalMessages + " | Clients: " + clients.size())
-        );
-    }
-
-    class ClientHandler extends Thread {
-        private Socket socket;
-        private String username;
-        private BufferedReader in;
-        private PrintWriter out;
-        private volatile boolean active = true;
-
-        public ClientHandler(Socket s, String u, BufferedReader i, PrintWriter o) {
-            socket = s; username = u; in = i; out = o;
-        }
-
-        public void run() {
-            try {
-                String msg;
-                while (active && (msg = in.readLine()) != null) {
-                    if (msg.startsWith("EXIT")) break;
-
-                    // Check if it's a private message
-                    if (msg.startsWith("PRIVATE:")) {
-                        String[] parts = msg.split(":", 3);
-                        if (parts.length == 3) {
-                            String recipient = parts[1];
-                            String message = parts[2];
-                            sendPrivate(message, username, recipient);
-                        }
-                    } else {
-                        broadcast(msg, username);
-                    }
-                }
-            } catch (IOException e) {
-            } finally {
-                disconnect();
-            }
         }
-
-        public void send(String msg) { out.println(msg); }
-
-        public void sendUsers(ArrayList<String> users) {
-            out.println("USERS:" + users.size() + ":" + String.join(",", users));
+        String stats = "Messages: " + core.totalMessages() + " | Clients: " + core.clientCount();
+        if (!stats.equals(lastStats)) {
+            statsLabel.setText(stats);
+            lastStats = stats;
         }
+    }
 
-        private void disconnect() {
-            active = false;
-            try { socket.close(); in.close(); out.close(); } catch (IOException e) {}
-            removeClient(username);
+    // Keep only the newest CONSOLE_LINES lines in the document
+    private void trimConsole() {
+        int excess = console.getLineCount() - 1 - ServerConfig.CONSOLE_LINES;
+        if (excess <= 0) return;
+        try {
+            console.replaceRange("", 0, console.getLineEndOffset(excess - 1));
+        } catch (javax.swing.text.BadLocationException e) {
+            console.setText("");
         }
     }
 
     public static void main(String[] args) {
+        if (ServerConfig.HEADLESS) {
+            ChatCore core = new ChatCore();
+            core.log().printTo(System.out);
+            core.start();
+            return;
+        }
         SwingUtilities.invokeLater(ChatServer::new);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,242 @@
+package el;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Client side of the wire protocol: turns server lines or binary frames into callbacks.
+// Kept free of Swing so it can be driven headless (benchmarks, load tools).
+final class ClientProtocol {
+    interface Listener {
+        void message(String time, String user, String msg, boolean isPrivate, boolean isSent);
+
+        // Legacy full user list
+        void users(int count, String users);
+
+        void snapshot(long version, String users);
+
+        void presence(long version, String user, boolean joined);
+
+        void roomMessage(String room, String time, String user, String msg);
+
+        // This client's own room subscriptions, as confirmed by the server
+        void room(String room, boolean joined);
+
+        // "ERROR:" after login, e.g. a private message that couldn't be delivered or kept
+        void error(String text);
+
+        // One page of SEARCH results, newest first
+        void searchResults(int page, int total, List<SearchIndex.Hit> hits);
+    }
+
+    private final Listener listener;
+    // Binary protocol user directory, kept current from SNAPSHOT/JOIN/LEAVE
+    private final Map<Integer, String> userNames = new ConcurrentHashMap<>();
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<>();
+    private final DateTimeFormatter timeFormat = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final int TIME_LENGTH = "HH:mm:ss".length();
+    // FOUND lines of the search page being received, handed over at its RESULTS line
+    private final List<SearchIndex.Hit> found = new ArrayList<>();
+    // For DEFLATED frames; made when the first one arrives
+    private Inflater inflater;
+
+    ClientProtocol(Listener listener) {
+        this.listener = listener;
+    }
+
+    Integer userId(String user) {
+        return userIds.get(user);
+    }
+
+    // Resumable session: token from the server, and lines (text) or frames (binary) received
+    // since login, which is what a reconnect reports back
+    private volatile String session;
+    private volatile long received;
+
+    String session() { return session; }
+
+    long received() { return received; }
+
+    // One line from the server, in the text protocol
+    void processMessage(String msg) {
+        received++;
+        handleLine(msg);
+    }
+
+    // One binary frame (opcode + body) from the server
+    void processFrame(ByteBuffer frame) {
+        received++;
+        handleFrame(frame);
+    }
+
+    private void handleLine(String msg) {
+        if (msg.startsWith("SESSION:")) {
+            session = msg.substring("SESSION:".length());
+        } else if (msg.startsWith("SNAPSHOT:")) {
+            String[] parts = msg.split(":", 4);
+            if (parts.length == 4) {
+                listener.snapshot(Long.parseLong(parts[1]), parts[3]);
+            }
+        } else if (msg.startsWith("JOIN:") || msg.startsWith("LEAVE:")) {
+            String[] parts = msg.split(":", 3);
+            if (parts.length == 3) {
+                listener.presence(Long.parseLong(parts[1]), parts[2], msg.startsWith("JOIN:"));
+            }
+        } else if (msg.startsWith("USERS:")) {
+            String[] parts = msg.split(":", 3);
+            if (parts.length == 3) {
+                listener.users(Integer.parseInt(parts[1]), parts[2]);
+            }
+        } else if (msg.startsWith("PRIVATE:")) {
+            direct(msg, "PRIVATE:".length(), "", false);
+        } else if (msg.startsWith("SENT:")) {
+            direct(msg, "SENT:".length(), "", true);
+        } else if (msg.startsWith("QUEUED:")) {
+            // Like SENT, but the recipient is offline and gets it at their next login
+            direct(msg, "QUEUED:".length(), " (offline)", true);
+        } else if (msg.startsWith("FOUND:")) {
+            String[] parts = msg.split(":", 5);
+            if (parts.length == 5) {
+                found.add(new SearchIndex.Hit(Long.parseLong(parts[1]), parts[2],
+                                              parts[3].isEmpty() ? null : parts[3], parts[4]));
+            }
+        } else if (msg.startsWith("RESULTS:")) {
+            String[] parts = msg.split(":", 4);
+            if (parts.length == 4) {
+                listener.searchResults(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), new ArrayList<>(found));
+            }
+            found.clear();
+        } else if (msg.startsWith("ERROR:")) {
+            listener.error(msg.substring("ERROR:".length()));
+        } else if (msg.startsWith("ROOM:")) {
+            int end = msg.indexOf(':', 5);
+            if (end > 5) parseLine(msg.substring(end + 1), msg.substring(5, end));
+        } else if (msg.startsWith("JOINEDROOM:")) {
+            listener.room(msg.substring("JOINEDROOM:".length()), true);
+        } else if (msg.startsWith("LEFTROOM:")) {
+            listener.room(msg.substring("LEFTROOM:".length()), false);
+        } else if (msg.startsWith("[")) {
+            parseLine(msg, null);
+        }
+    }
+
+    // "<HH:mm:ss>:<user>:<message>" after a PRIVATE/SENT/QUEUED prefix. The time holds colons
+    // itself, so it is taken by its fixed width rather than split on.
+    private void direct(String msg, int start, String userSuffix, boolean sent) {
+        int timeEnd = start + TIME_LENGTH;
+        if (msg.length() <= timeEnd || msg.charAt(timeEnd) != ':') return;
+        int userEnd = msg.indexOf(':', timeEnd + 1);
+        if (userEnd < 0) return;
+        listener.message(msg.substring(start, timeEnd), msg.substring(timeEnd + 1, userEnd) + userSuffix,
+                         msg.substring(userEnd + 1), true, sent);
+    }
+
+    // "[time] user: message", to everyone or within a room
+    private void parseLine(String msg, String room) {
+        int closeIdx = msg.indexOf("]");
+        if (closeIdx > 0 && closeIdx + 2 <= msg.length()) {
+            String time = msg.substring(1, closeIdx);
+            String rest = msg.substring(closeIdx + 2);
+            int colonIdx = rest.indexOf(": ");
+            if (colonIdx > 0) {
+                String user = rest.substring(0, colonIdx);
+                String message = rest.substring(colonIdx + 2);
+                if (room == null) {
+                    listener.message(time, user, message, false, false);
+                } else {
+                    listener.roomMessage(room, time, user, message);
+                }
+            }
+        }
+    }
+
+    // Numeric ids are resolved through the presence maps
+    private void handleFrame(ByteBuffer frame) {
+        byte opcode = frame.get();
+        switch (opcode) {
+            case BinaryProtocol.TEXT:
+                handleLine(BinaryProtocol.remainingText(frame));
+                break;
+            case BinaryProtocol.MESSAGE:
+            case BinaryProtocol.PRIVATE:
+            case BinaryProtocol.SENT: {
+                String user = userNames.getOrDefault(frame.getInt(), "?");
+                String time = Instant.ofEpochMilli(frame.getLong()).atZone(ZoneId.systemDefault()).format(timeFormat);
+                listener.message(time, user, BinaryProtocol.remainingText(frame),
+                           opcode != BinaryProtocol.MESSAGE, opcode == BinaryProtocol.SENT);
+                break;
+            }
+            case BinaryProtocol.ROOM_MESSAGE: {
+                String user = userNames.getOrDefault(frame.getInt(), "?");
+                String time = Instant.ofEpochMilli(frame.getLong()).atZone(ZoneId.systemDefault()).format(timeFormat);
+                String room = BinaryProtocol.shortText(frame);
+                if (room == null) break;
+                listener.roomMessage(room, time, user, BinaryProtocol.remainingText(frame));
+                break;
+            }
+            case BinaryProtocol.SNAPSHOT: {
+                long version = frame.getLong();
+                int count = frame.getInt();
+                // Each entry takes at least 6 bytes; don't trust a count or length past the frame
+                if (count < 0 || count > frame.remaining() / 6) break;
+                ArrayList<String> names = new ArrayList<>(count);
+                userNames.clear();
+                userIds.clear();
+                for (int i = 0; i < count && frame.remaining() >= 4; i++) {
+                    int id = frame.getInt();
+                    String user = BinaryProtocol.shortText(frame);
+                    if (user == null) break;
+                    userNames.put(id, user);
+                    userIds.put(user, id);
+                    names.add(user);
+                }
+                listener.snapshot(version, String.join(",", names));
+                break;
+            }
+            case BinaryProtocol.JOIN: {
+                long version = frame.getLong();
+                int id = frame.getInt();
+                String user = BinaryProtocol.remainingText(frame);
+                userNames.put(id, user);
+                userIds.put(user, id);
+                listener.presence(version, user, true);
+                break;
+            }
+            case BinaryProtocol.DEFLATED: {
+                ByteBuffer frames;
+                try {
+                    if (inflater == null) inflater = new Inflater(true);
+                    frames = Compression.inflate(inflater, frame);
+                } catch (DataFormatException e) {
+                    break;
+                }
+                while (frames.remaining() >= 4) {
+                    int length = frames.getInt();
+                    if (length <= 0 || length > frames.remaining()) break;
+                    ByteBuffer inner = frames.slice();
+                    inner.limit(length);
+                    frames.position(frames.position() + length);
+                    handleFrame(inner);
+                }
+                break;
+            }
+            case BinaryProtocol.LEAVE: {
+                long version = frame.getLong();
+                String user = userNames.remove(frame.getInt());
+                if (user != null) {
+                    userIds.remove(user);
+                    listener.presence(version, user, false);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+}
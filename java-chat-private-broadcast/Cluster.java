@@ -0,0 +1,351 @@
+package el;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Full-mesh clustering over TCP. Each node dials every configured peer for its outbound stream
+// and accepts the peers' dials as inbound streams, so every direction has one connection and
+// exactly one writer. Records are encoded once and queued per peer; a peer's writer drains
+// whatever has queued up and sends it with a single flush, so broadcasts cross in batches.
+// Private messages go only onto the queue of the node that holds the recipient.
+//
+// Handshake, before any record: the dialer sends HELLO, its nodeId and a random nonce; the
+// acceptor answers HELLO, its nodeId, its own nonce and a proof for the dialer's nonce; the
+// dialer sends a proof for the acceptor's. A proof is an HMAC-SHA256 of a role byte and the
+// nonce under the shared chat.clusterSecret, so only nodes that hold the secret get in.
+//
+// Record: byte type, then
+//   SYNC      int count, count x (name, long since)   every local user, first after connecting
+//   JOIN      name, long since
+//   LEAVE     name
+//   BROADCAST sender, long time, text
+//   PRIVATE   sender, recipient, long time, text
+//   ROOM      sender, room, long time, text             dropped by nodes with no members in the room
+// Names are writeUTF strings, text is int length + UTF-8.
+final class Cluster {
+    static final byte HELLO = 1;
+    static final byte SYNC = 2;
+    static final byte JOIN = 3;
+    static final byte LEAVE = 4;
+    static final byte BROADCAST = 5;
+    static final byte PRIVATE = 6;
+    static final byte ROOM = 7;
+
+    private static final long RECONNECT_MILLIS = 1000;
+    // How long an inbound connection has to prove itself
+    private static final int HANDSHAKE_MILLIS = 5000;
+    private static final int NONCE_LENGTH = 16;
+    private static final int PROOF_LENGTH = 32;
+    // Role bytes in a proof, so an acceptor's answer can't be replayed as a dialer's
+    private static final byte DIALER = 'D';
+    private static final byte ACCEPTOR = 'A';
+
+    private final ChatCore core;
+    private final String nodeId;
+    private final byte[] secret;
+    private final SecureRandom nonces = new SecureRandom();
+    private final List<Peer> peers = new ArrayList<>();
+    // Outbound peers by node id, once they have answered HELLO
+    private final ConcurrentHashMap<String, Peer> byNode = new ConcurrentHashMap<>();
+    // The live inbound connection of each node; an older one closing late must not drop its users
+    private final ConcurrentHashMap<String, Socket> inbound = new ConcurrentHashMap<>();
+
+    Cluster(ChatCore core, String nodeId, String peerList, String secret) {
+        this.core = core;
+        this.nodeId = nodeId;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        for (String p : peerList.split(",")) {
+            p = p.trim();
+            if (p.isEmpty()) continue;
+            int colon = p.lastIndexOf(':');
+            peers.add(new Peer(p.substring(0, colon), Integer.parseInt(p.substring(colon + 1))));
+        }
+    }
+
+    String nodeId() { return nodeId; }
+
+    // Peers dial in on this address only
+    void start(String bindAddress, int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread reader = new Thread(() -> readPeer(socket), "cluster-in");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    core.logError("cluster accept: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            Thread writer = new Thread(peer::run, "cluster-out-" + peer.host + ":" + peer.port);
+            writer.setDaemon(true);
+            peer.thread = writer;
+            writer.start();
+        }
+    }
+
+    // --- outbound, called from routing threads ---
+
+    void joined(String name, long since) {
+        toAll(encode(JOIN, out -> { out.writeUTF(name); out.writeLong(since); }));
+    }
+
+    void left(String name) {
+        toAll(encode(LEAVE, out -> out.writeUTF(name)));
+    }
+
+    void broadcast(String sender, long time, String text) {
+        toAll(encode(BROADCAST, out -> { out.writeUTF(sender); out.writeLong(time); writeText(out, text); }));
+    }
+
+    void roomMessage(String sender, String room, long time, String text) {
+        toAll(encode(ROOM, out -> { out.writeUTF(sender); out.writeUTF(room); out.writeLong(time); writeText(out, text); }));
+    }
+
+    // False if the node is not connected right now
+    boolean sendPrivate(String node, String sender, String recipient, long time, String text) {
+        Peer peer = byNode.get(node);
+        if (peer == null) return false;
+        peer.offer(encode(PRIVATE, out -> {
+            out.writeUTF(sender); out.writeUTF(recipient); out.writeLong(time); writeText(out, text);
+        }));
+        return true;
+    }
+
+    private void toAll(byte[] record) {
+        for (Peer peer : peers) peer.offer(record);
+    }
+
+    // --- inbound ---
+
+    private void readPeer(Socket socket) {
+        String node = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            if (in.readByte() != HELLO) return;
+            String dialer = in.readUTF();
+            byte[] theirs = readBytes(in, NONCE_LENGTH);
+            byte[] ours = nonce();
+            out.writeByte(HELLO);
+            out.writeUTF(nodeId);
+            out.write(ours);
+            out.write(proof(ACCEPTOR, theirs));
+            out.flush();
+            if (!MessageDigest.isEqual(readBytes(in, PROOF_LENGTH), proof(DIALER, ours))) {
+                core.logError("cluster connection from " + socket.getInetAddress().getHostAddress() + " failed the handshake");
+                return;
+            }
+            socket.setSoTimeout(0);
+            node = dialer;
+            Socket previous = inbound.put(node, socket);
+            if (previous != null) previous.close();
+            core.log().add("[OK] Cluster node " + node + " connected");
+            while (true) {
+                byte type = in.readByte();
+                core.metrics().clusterIn.increment();
+                switch (type) {
+                    case SYNC: {
+                        int count = in.readInt();
+                        Map<String, Long> users = new HashMap<>();
+                        for (int i = 0; i < count; i++) users.put(in.readUTF(), in.readLong());
+                        core.nodeSynced(node, users);
+                        break;
+                    }
+                    case JOIN: core.remoteJoined(node, in.readUTF(), in.readLong()); break;
+                    case LEAVE: core.remoteLeft(node, in.readUTF()); break;
+                    case BROADCAST: core.remoteBroadcast(in.readUTF(), in.readLong(), readText(in)); break;
+                    case PRIVATE: core.remotePrivate(in.readUTF(), in.readUTF(), in.readLong(), readText(in)); break;
+                    case ROOM: core.remoteRoomMessage(in.readUTF(), in.readUTF(), in.readLong(), readText(in)); break;
+                    default: throw new IOException("unknown record " + type + " from " + node);
+                }
+            }
+        } catch (IOException e) {
+            // peer went away
+        } finally {
+            try { socket.close(); } catch (IOException e) {}
+            if (node != null && inbound.remove(node, socket)) {
+                core.log().add("[EXIT] Cluster node " + node + " disconnected");
+                core.nodeLost(node);
+            }
+        }
+    }
+
+    // One outbound connection with its queue and writer thread; reconnects until the server exits
+    private final class Peer {
+        final String host;
+        final int port;
+        final OutboundQueue<byte[]> queue =
+            new OutboundQueue<>(ServerConfig.CLUSTER_QUEUE, OutboundQueue.OverflowPolicy.DISCONNECT);
+        Thread thread;
+        volatile Socket socket;
+        volatile boolean idle;
+        String node;
+        boolean refused;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Dropped while disconnected: the peer is resynced on reconnect. A full queue means the
+        // peer can't keep up, so the link is reset rather than stalling routing threads.
+        void offer(byte[] record) {
+            Socket s = socket;
+            if (s == null) return;
+            if (!queue.offer(record)) {
+                core.logError("cluster peer " + host + ":" + port + " is not keeping up, reconnecting");
+                try { s.close(); } catch (IOException e) {}
+            }
+            if (idle) LockSupport.unpark(thread);
+        }
+
+        void run() {
+            while (true) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, port), (int) RECONNECT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                    DataInputStream in = new DataInputStream(s.getInputStream());
+                    byte[] ours = nonce();
+                    out.writeByte(HELLO);
+                    out.writeUTF(nodeId);
+                    out.write(ours);
+                    out.flush();
+                    s.setSoTimeout(HANDSHAKE_MILLIS);
+                    if (in.readByte() != HELLO) throw new IOException("bad handshake");
+                    String acceptor = in.readUTF();
+                    byte[] theirs = readBytes(in, NONCE_LENGTH);
+                    if (!MessageDigest.isEqual(readBytes(in, PROOF_LENGTH), proof(ACCEPTOR, ours))) {
+                        // Once, not on every retry
+                        if (!refused) core.logError("cluster peer " + host + ":" + port + " failed the handshake");
+                        refused = true;
+                        throw new IOException("bad handshake");
+                    }
+                    refused = false;
+                    out.write(proof(DIALER, theirs));
+                    out.flush();
+                    s.setSoTimeout(0);
+                    node = acceptor;
+                    if (node.equals(nodeId)) {
+                        core.logError("cluster peer " + host + ":" + port + " is this node, ignoring it");
+                        return;
+                    }
+                    // Start queuing before the snapshot is taken: a change racing with it is
+                    // then sent twice at worst, and JOIN/LEAVE are idempotent on the other side
+                    queue.clear();
+                    socket = s;
+                    byNode.put(node, this);
+                    Map<String, Long> users = core.localUsers();
+                    out.writeByte(SYNC);
+                    out.writeInt(users.size());
+                    for (Map.Entry<String, Long> u : users.entrySet()) {
+                        out.writeUTF(u.getKey());
+                        out.writeLong(u.getValue());
+                    }
+                    out.flush();
+                    drain(s, out);
+                } catch (IOException e) {
+                    // not up yet, or the link broke
+                } finally {
+                    socket = null;
+                    if (node != null) byNode.remove(node, this);
+                    queue.clear();
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(RECONNECT_MILLIS));
+            }
+        }
+
+        // Everything queued since the last pass goes out with one flush
+        private void drain(Socket s, DataOutputStream out) throws IOException {
+            while (!s.isClosed()) {
+                byte[] record = queue.poll();
+                if (record == null) {
+                    idle = true;
+                    if (queue.isEmpty()) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    idle = false;
+                    continue;
+                }
+                int n = 0;
+                do {
+                    out.write(record);
+                    n++;
+                } while ((record = queue.poll()) != null);
+                out.flush();
+                core.metrics().clusterOut.add(n);
+            }
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(byte type, Writer body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] nonce() {
+        byte[] b = new byte[NONCE_LENGTH];
+        nonces.nextBytes(b);
+        return b;
+    }
+
+    // HMAC-SHA256 of the role byte and the other side's nonce
+    private byte[] proof(byte role, byte[] nonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(role);
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 4 * ServerConfig.MAX_LINE_LENGTH) throw new IOException("bad text length " + length);
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
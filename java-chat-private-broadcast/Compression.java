@@ -0,0 +1,101 @@
+package el;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// DEFLATE for binary-protocol clients that log in with the "deflate" capability. A
+// BinaryProtocol.DEFLATED frame holds one or more complete frames as raw deflate against a
+// preset dictionary. Every DEFLATED frame starts from that dictionary, with no context carried
+// over from earlier ones, so the bytes compressed for one recipient are valid for all of them:
+// a broadcast is compressed once (cached on its Frame) however many clients receive it.
+final class Compression {
+    // Strings likely to recur in chat frames; zlib favours matches near the end of the dictionary.
+    // Changing it breaks every client built against the old one.
+    static final byte[] DICTIONARY = (
+        "\0\0\0\0\0\0\0\1\0\0\1"
+        + "thanks please sorry because about would could should there their where which when what "
+        + "just like think know really good great yeah okay sure maybe today tomorrow meeting later "
+        + "have this that with from your will been they them then than were here more time http://https://www. "
+        + "PRIVATE:SENT:ROOM:JOIN:LEAVE:USERS:SNAPSHOT:ERROR: to the and you for is it in of a I ] : [")
+        .getBytes(StandardCharsets.ISO_8859_1);
+
+    // Inflated batches larger than this are refused, so a bad frame can't exhaust memory
+    static final int MAX_INFLATED = 16 << 20;
+
+    private static final ConcurrentLinkedQueue<Deflater> POOL = new ConcurrentLinkedQueue<>();
+
+    private Compression() {}
+
+    // One frame's bytes as a DEFLATED frame, or null if that isn't smaller
+    static Frame deflate(byte[] frame) {
+        Deflater d = acquire();
+        try {
+            return deflate(d, frame, frame.length);
+        } finally {
+            POOL.offer(d);
+        }
+    }
+
+    // Several frames as one DEFLATED frame; compresses better than one at a time since later
+    // frames can refer back to earlier ones. Null if that isn't smaller.
+    static Frame deflate(List<Frame> frames) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        try {
+            for (Frame f : frames) f.writeTo(batch);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return deflate(batch.toByteArray());
+    }
+
+    // With the caller's Deflater, e.g. one at a different level
+    static Frame deflate(Deflater d, byte[] bytes, int length) {
+        d.reset();
+        d.setDictionary(DICTIONARY);
+        d.setInput(bytes, 0, length);
+        d.finish();
+        // Room for the length and opcode, and no more than the uncompressed frames took
+        byte[] out = new byte[length];
+        int n = 5;
+        while (!d.finished() && n < out.length) {
+            n += d.deflate(out, n, out.length - n);
+        }
+        if (!d.finished()) return null;
+        ByteBuffer.wrap(out).putInt(n - 4).put(BinaryProtocol.DEFLATED);
+        return Frame.ofBytes(Arrays.copyOf(out, n));
+    }
+
+    // Client side: the frames inside a DEFLATED frame's body, still length-prefixed
+    static ByteBuffer inflate(Inflater inf, ByteBuffer body) throws DataFormatException {
+        inf.reset();
+        inf.setDictionary(DICTIONARY);
+        inf.setInput(body);
+        byte[] out = new byte[Math.max(256, body.remaining() * 4)];
+        int n = 0;
+        while (!inf.finished()) {
+            if (n == out.length) {
+                if (out.length >= MAX_INFLATED) throw new DataFormatException("inflated batch too large");
+                out = Arrays.copyOf(out, Math.min(MAX_INFLATED, out.length * 2));
+            }
+            int k = inf.inflate(out, n, out.length - n);
+            if (k == 0 && (inf.needsInput() || inf.needsDictionary())) throw new DataFormatException("truncated batch");
+            n += k;
+        }
+        return ByteBuffer.wrap(out, 0, n);
+    }
+
+    // Deflaters hold native buffers; pooled rather than per thread, since virtual threads are many
+    private static Deflater acquire() {
+        Deflater d = POOL.poll();
+        return d != null ? d : new Deflater(ServerConfig.COMPRESS_LEVEL, true);
+    }
+}
@@ -0,0 +1,82 @@
+package el;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// One outbound protocol message, encoded once and shared by every recipient:
+// a newline-terminated text line, or a binary frame. The bytes are never modified.
+final class Frame {
+    private final byte[] bytes;
+    // Direct copy for channel writes, made on first use and then shared
+    private volatile ByteBuffer direct;
+    // Text line wrapped for binary-protocol clients, made on first use and then shared
+    private volatile Frame binaryText;
+    // This binary frame as a DEFLATED one, made on first use and then shared
+    private volatile Frame deflated;
+    // Line count for resumption, counted on first use and then shared (0 = not yet)
+    private volatile int lines;
+
+    private Frame(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    static Frame of(String line) {
+        return new Frame((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Already framed bytes, taken as-is
+    static Frame ofBytes(byte[] bytes) {
+        return new Frame(bytes);
+    }
+
+    // This text line as a BinaryProtocol.TEXT frame
+    Frame binaryText() {
+        Frame b = binaryText;
+        if (b == null) {
+            b = BinaryProtocol.text(bytes, bytes.length - 1);
+            binaryText = b;
+        }
+        return b;
+    }
+
+    // For "deflate" clients; the frame itself when it is short or doesn't compress
+    Frame deflated() {
+        Frame d = deflated;
+        if (d == null) {
+            if (bytes.length >= ServerConfig.COMPRESS_MIN) d = Compression.deflate(bytes);
+            if (d == null) d = this;
+            deflated = d;
+        }
+        return d;
+    }
+
+    // Lines in a text frame (a batch holds several), as a text client counts them
+    int lines() {
+        int n = lines;
+        if (n == 0) {
+            for (byte b : bytes) if (b == '\n') n++;
+            lines = n;
+        }
+        return n;
+    }
+
+    int length() { return bytes.length; }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    // Fresh position/limit over the shared direct bytes; no per-recipient copy or encode
+    ByteBuffer buffer() {
+        ByteBuffer d = direct;
+        if (d == null) {
+            d = ByteBuffer.allocateDirect(bytes.length);
+            d.put(bytes).flip();
+            d = d.asReadOnlyBuffer();
+            direct = d;
+        }
+        return d.duplicate();
+    }
+}
@@ -0,0 +1,315 @@
+package el;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only message journal split into numbered segment files.
+// Routing threads only enqueue a record; one writer thread encodes whole batches and
+// commits each batch with a single write (and fsync, if enabled). The queue is bounded: when
+// the disk falls that far behind, the oldest queued records are dropped and counted rather
+// than holding up fan-out. Segments are read
+// back through memory maps. A new segment is started on every open, so a torn tail
+// from a crash is only ever at the end of a sealed segment, where the reader stops.
+//
+// Record: int payloadLength, int crc32(payload), payload =
+//   byte kind, long timeMillis, short senderLen, sender, short recipientLen, recipient, int textLen, text
+final class Journal implements Closeable {
+    static final byte BROADCAST = 0;
+    static final byte PRIVATE = 1;
+    // recipient holds the room name
+    static final byte ROOM = 2;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;
+    // How often the writer checks the age limit when no segment rolls
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+    static final class Record {
+        final byte kind;
+        final long time;
+        final String sender;
+        final String recipient;
+        final String text;
+
+        Record(byte kind, long time, String sender, String recipient, String text) {
+            this.kind = kind; this.time = time; this.sender = sender;
+            this.recipient = recipient == null ? "" : recipient; this.text = text;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int maxSegments;
+    private final long retentionMillis;
+    private final boolean fsync;
+    // Where write failures are reported: the server log
+    private final Consumer<String> errors;
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    private final OutboundQueue<Record> pending;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32 crc = new CRC32();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean idle;
+    private FileChannel current;
+    private long currentSize;
+    private long nextIndex;
+    // Writer thread only: last write to the current segment, last retention check, drops reported
+    private long lastWrite;
+    private long lastRetentionCheck;
+    private long droppedReported;
+    private final LongAdder written = new LongAdder();
+
+    Journal(Path dir, long segmentBytes, int maxSegments, long retentionMillis, boolean fsync,
+            int queueCapacity, Consumer<String> errors) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.pending = new OutboundQueue<>(queueCapacity, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        this.errors = errors;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.retentionMillis = retentionMillis;
+        this.fsync = fsync;
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().startsWith(PREFIX))
+                 .sorted()
+                 .forEach(segments::add);
+        }
+        Path last = segments.peekLast();
+        nextIndex = last == null ? 0 : indexOf(last) + 1;
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+    }
+
+    static Journal open(Path dir, Consumer<String> errors) throws IOException {
+        return new Journal(dir, ServerConfig.JOURNAL_SEGMENT_BYTES, ServerConfig.JOURNAL_SEGMENTS,
+                           ServerConfig.JOURNAL_RETENTION_MILLIS, ServerConfig.JOURNAL_FSYNC,
+                           ServerConfig.JOURNAL_QUEUE, errors);
+    }
+
+    // Opens the first new segment and starts the writer; call after any startup replay
+    void start() throws IOException {
+        roll();
+        writer.start();
+    }
+
+    // Fan-out path: allocation of one record and a lock-free enqueue, nothing else
+    void append(byte kind, long time, String sender, String recipient, String text) {
+        pending.offer(new Record(kind, time, sender, recipient, text));
+        if (idle) LockSupport.unpark(writer);
+    }
+
+    // Records waiting for the writer, dropped because it fell behind, and committed
+    int queued() { return pending.size(); }
+
+    long dropped() { return pending.dropped(); }
+
+    long written() { return written.sum(); }
+
+    // Every intact record in the existing segments, oldest first, read through memory maps
+    void replay(Consumer<Record> sink) throws IOException {
+        for (Path segment : segments) {
+            if (segment.equals(currentPath())) continue;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                if (ch.size() == 0) continue;
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                readRecords(map, sink);
+            }
+        }
+    }
+
+    private void readRecords(ByteBuffer map, Consumer<Record> sink) {
+        CRC32 check = new CRC32();
+        while (map.remaining() >= HEADER) {
+            int length = map.getInt();
+            int sum = map.getInt();
+            if (length <= 0 || length > map.remaining()) return;
+            ByteBuffer payload = map.slice();
+            payload.limit(length);
+            check.reset();
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != sum) return;
+            map.position(map.position() + length);
+
+            Record r;
+            try {
+                byte kind = payload.get();
+                long time = payload.getLong();
+                String sender = readString(payload, payload.getShort() & 0xFFFF);
+                String recipient = readString(payload, payload.getShort() & 0xFFFF);
+                String text = readString(payload, payload.getInt());
+                r = new Record(kind, time, sender, recipient, text);
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                // A field longer than its record: treated like a torn tail
+                return;
+            }
+            sink.accept(r);
+        }
+    }
+
+    private static String readString(ByteBuffer buf, int len) {
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private void writeLoop() {
+        while (running || !pending.isEmpty()) {
+            try {
+                checkRetention();
+                Record r = pending.poll();
+                if (r == null) {
+                    idle = true;
+                    if (pending.isEmpty() && running) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                    idle = false;
+                    continue;
+                }
+                // Group commit: everything queued so far goes out in one write and one fsync
+                int n = 0;
+                do {
+                    encode(r);
+                    n++;
+                } while ((r = pending.poll()) != null);
+                commit();
+                written.add(n);
+                long dropped = pending.dropped();
+                if (dropped > droppedReported) {
+                    errors.accept("Journal fell behind, " + (dropped - droppedReported) + " records dropped");
+                    droppedReported = dropped;
+                }
+            } catch (IOException | RuntimeException e) {
+                // The failed batch is lost, but the writer carries on with the next one
+                errors.accept("Journal write failed: " + e);
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void encode(Record r) throws IOException {
+        byte[] sender = r.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] recipient = r.recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] text = r.text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 2 + sender.length + 2 + recipient.length + 4 + text.length;
+        if (HEADER + length > batch.remaining()) flushBatch();
+
+        ByteBuffer out = HEADER + length <= batch.capacity() ? batch : ByteBuffer.allocate(HEADER + length);
+        int start = out.position();
+        out.putInt(length).putInt(0);
+        out.put(r.kind).putLong(r.time);
+        out.putShort((short) sender.length).put(sender);
+        out.putShort((short) recipient.length).put(recipient);
+        out.putInt(text.length).put(text);
+
+        ByteBuffer payload = out.duplicate();
+        payload.position(start + HEADER).limit(out.position());
+        crc.reset();
+        crc.update(payload);
+        out.putInt(start + 4, (int) crc.getValue());
+
+        if (out != batch) {
+            out.flip();
+            writeFully(out);
+        }
+    }
+
+    // The batch is emptied even if the write fails, so the next record always has room
+    private void flushBatch() throws IOException {
+        batch.flip();
+        try {
+            writeFully(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        if (currentSize > 0 && currentSize + buf.remaining() > segmentBytes) roll();
+        while (buf.hasRemaining()) {
+            currentSize += current.write(buf);
+        }
+        lastWrite = System.currentTimeMillis();
+    }
+
+    // The age limit, even on a server too quiet to roll segments: a current segment with
+    // nothing newer than the limit is sealed, and so dropped with the other expired ones
+    private void checkRetention() throws IOException {
+        if (retentionMillis <= 0) return;
+        long now = System.currentTimeMillis();
+        if (now - lastRetentionCheck < RETENTION_CHECK_MILLIS) return;
+        lastRetentionCheck = now;
+        if (currentSize > 0 && lastWrite < now - retentionMillis) {
+            roll();
+        } else {
+            enforceRetention();
+        }
+    }
+
+    private void commit() throws IOException {
+        flushBatch();
+        if (fsync) current.force(false);
+    }
+
+    private void roll() throws IOException {
+        if (current != null) {
+            current.force(false);
+            current.close();
+        }
+        Path path = dir.resolve(String.format("%s%020d%s", PREFIX, nextIndex++, SUFFIX));
+        current = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        currentSize = 0;
+        segments.add(path);
+        enforceRetention();
+    }
+
+    // Drop the oldest sealed segments past the count limit or the age limit
+    private void enforceRetention() throws IOException {
+        long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+        while (segments.size() > 1) {
+            Path oldest = segments.peekFirst();
+            boolean expired = Files.getLastModifiedTime(oldest).toMillis() < cutoff;
+            if (segments.size() <= maxSegments && !expired) break;
+            segments.pollFirst();
+            Files.deleteIfExists(oldest);
+        }
+    }
+
+    private Path currentPath() {
+        return current == null ? null : segments.peekLast();
+    }
+
+    private static long indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // Stops the writer after it has committed everything already queued
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (current != null) {
+            current.force(true);
+            current.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package el;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Private messages for users who are offline, kept until they next log in. Each mailbox is a
+// packed byte log (time, sender, text), so a stored message costs its UTF-8 bytes plus a few.
+// Past the shared memory budget a mailbox moves to its own file; a per-user quota caps how much
+// any one user can be sent while away, and a disk limit caps all the files together.
+// Storing never touches the disk: a spilled mailbox's new messages wait in memory for the
+// writer thread, so a slow disk holds up only that thread and a login reading the same mailbox.
+final class Mailboxes {
+    enum Result { STORED, MAILBOX_FULL, STORAGE_FULL }
+
+    static final class Message {
+        final long time;
+        final String sender;
+        final String text;
+
+        Message(long time, String sender, String text) {
+            this.time = time; this.sender = sender; this.text = text;
+        }
+    }
+
+    private static final class Mailbox {
+        // Messages not on disk: all of them, or for a spilled mailbox those not written yet
+        byte[] bytes = new byte[64];
+        int length;
+        int count;
+        boolean spilled;
+        boolean flushQueued;
+        // Taken by its user's login; a late write must not bring its file back
+        boolean taken;
+        // Held for the file's I/O. Set by the writer on its first write, and read under io.
+        final ReentrantLock io = new ReentrantLock();
+        Path file;
+    }
+
+    private final long memoryBudget;
+    private final long diskLimit;
+    private final int quota;
+    private final Consumer<String> errors;
+    // Made on the first spill when none is configured; writer thread only
+    private Path dir;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final HashMap<String, Mailbox> boxes = new HashMap<>();
+    private volatile long memoryUsed;
+    private volatile long spilledBytes;
+    // Bytes of spilled mailboxes still in memory, waiting for the writer
+    private long writeBehind;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    Mailboxes(long memoryBudget, long diskLimit, int quota, Path dir, Consumer<String> errors) {
+        this.memoryBudget = memoryBudget;
+        this.diskLimit = diskLimit;
+        this.quota = quota;
+        this.dir = dir;
+        this.errors = errors;
+    }
+
+    static Mailboxes fromConfig(Consumer<String> errors) {
+        Path dir = ServerConfig.MAILBOX_DIR == null ? null : Paths.get(ServerConfig.MAILBOX_DIR);
+        return new Mailboxes(ServerConfig.MAILBOX_MEMORY, ServerConfig.MAILBOX_DISK, ServerConfig.MAILBOX_QUOTA, dir, errors);
+    }
+
+    // MAILBOX_FULL past the recipient's quota; STORAGE_FULL when the disk limit is reached, or
+    // the disk has fallen a whole memory budget behind
+    Result store(String recipient, long time, String sender, String text) {
+        byte[] record = encode(time, sender, text);
+        Mailbox box;
+        lock.lock();
+        try {
+            box = boxes.computeIfAbsent(recipient, k -> new Mailbox());
+            if (box.count >= quota) return Result.MAILBOX_FULL;
+            boolean spill = box.spilled || memoryUsed + record.length > memoryBudget;
+            if (spill) {
+                // Spilling moves what the mailbox already holds to disk as well
+                long toDisk = record.length + (box.spilled ? 0 : box.length);
+                if ((diskLimit > 0 && spilledBytes + writeBehind + toDisk > diskLimit)
+                    || writeBehind + toDisk > memoryBudget) {
+                    if (box.count == 0) boxes.remove(recipient);
+                    return Result.STORAGE_FULL;
+                }
+                box.spilled = true;
+                writeBehind += toDisk;
+            }
+            if (box.length + record.length > box.bytes.length) {
+                box.bytes = Arrays.copyOf(box.bytes, Math.max(box.bytes.length * 2, box.length + record.length));
+            }
+            System.arraycopy(record, 0, box.bytes, box.length, record.length);
+            box.length += record.length;
+            memoryUsed += record.length;
+            box.count++;
+            if (!spill || box.flushQueued) return Result.STORED;
+            box.flushQueued = true;
+        } finally {
+            lock.unlock();
+        }
+        writer.execute(() -> flush(box));
+        return Result.STORED;
+    }
+
+    // Writer thread: append whatever the mailbox has waiting to its file. On failure it stays
+    // in memory, still counted against the write-behind budget, and is delivered from there.
+    private void flush(Mailbox box) {
+        box.io.lock();
+        try {
+            byte[] chunk;
+            lock.lock();
+            try {
+                box.flushQueued = false;
+                if (box.taken || box.length == 0) return;
+                chunk = Arrays.copyOf(box.bytes, box.length);
+            } finally {
+                lock.unlock();
+            }
+            if (box.file == null) box.file = newFile();
+            Files.write(box.file, chunk, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            lock.lock();
+            try {
+                // Only the writer removes bytes, and stores only append, so the chunk is still the front
+                System.arraycopy(box.bytes, chunk.length, box.bytes, 0, box.length - chunk.length);
+                box.length -= chunk.length;
+                memoryUsed -= chunk.length;
+                writeBehind -= chunk.length;
+                spilledBytes += chunk.length;
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException e) {
+            errors.accept("Mailbox not written: " + e.getMessage());
+        } finally {
+            box.io.unlock();
+        }
+    }
+
+    // Everything stored for the user, oldest first, and the mailbox emptied. Waits for a write
+    // to its file that is under way, but not for anyone else's.
+    List<Message> take(String user) throws IOException {
+        Mailbox box;
+        lock.lock();
+        try {
+            box = boxes.remove(user);
+        } finally {
+            lock.unlock();
+        }
+        if (box == null) return Collections.emptyList();
+        byte[] bytes;
+        int length;
+        byte[] onDisk = null;
+        box.io.lock();
+        try {
+            lock.lock();
+            try {
+                box.taken = true;
+                bytes = box.bytes;
+                length = box.length;
+                memoryUsed -= length;
+                if (box.spilled) writeBehind -= length;
+            } finally {
+                lock.unlock();
+            }
+            if (box.file != null) {
+                onDisk = Files.readAllBytes(box.file);
+                Files.deleteIfExists(box.file);
+                lock.lock();
+                try {
+                    spilledBytes -= onDisk.length;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } finally {
+            box.io.unlock();
+        }
+        List<Message> out = new ArrayList<>(box.count);
+        // What reached the file is older than what was still waiting for it
+        if (onDisk != null) decode(onDisk, onDisk.length, out);
+        decode(bytes, length, out);
+        return out;
+    }
+
+    private static void decode(byte[] bytes, int length, List<Message> out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+        while (in.available() > 0) {
+            long time = in.readLong();
+            String sender = in.readUTF();
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            out.add(new Message(time, sender, new String(text, StandardCharsets.UTF_8)));
+        }
+    }
+
+    int mailboxes() {
+        lock.lock();
+        try {
+            return boxes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long memoryBytes() { return memoryUsed; }
+
+    long spilledBytes() { return spilledBytes; }
+
+    // A file of its own for a mailbox; writer thread only
+    private Path newFile() throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory("chat-mailboxes");
+            dir.toFile().deleteOnExit();
+        }
+        Files.createDirectories(dir);
+        Path file = Files.createTempFile(dir, "mbox-", ".mbox");
+        // Mailboxes don't outlive the server, so neither do their files
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    private static byte[] encode(long time, String sender, String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + sender.length() + text.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte[] t = text.getBytes(StandardCharsets.UTF_8);
+            out.writeLong(time);
+            out.writeUTF(sender);
+            out.writeInt(t.length);
+            out.write(t);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
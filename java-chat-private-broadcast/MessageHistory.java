@@ -0,0 +1,59 @@
+package el;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// Fixed-capacity ring of recent broadcast frames. Stored as the already-encoded frames,
+// so replay sends the same bytes again with no re-encoding. One writer at a time
+// (the routing lock); readers walk the ring without locking.
+final class MessageHistory {
+    private static final class Entry {
+        final long seq;
+        final long time;
+        final Frame frame;
+
+        Entry(long seq, long time, Frame frame) {
+            this.seq = seq; this.time = time; this.frame = frame;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final long retentionMillis;
+    private volatile long lastSeq = 0;
+
+    MessageHistory(int capacity, long retentionMillis) {
+        this.ring = new AtomicReferenceArray<>(Math.max(1, capacity));
+        this.retentionMillis = retentionMillis;
+    }
+
+    // Caller must serialize adds
+    long add(Frame frame) {
+        return add(frame, System.currentTimeMillis());
+    }
+
+    long add(Frame frame, long time) {
+        long seq = lastSeq + 1;
+        ring.set(slot(seq), new Entry(seq, time, frame));
+        lastSeq = seq;
+        return seq;
+    }
+
+    long lastSeq() { return lastSeq; }
+
+    // Oldest first: the entries with after < seq <= upto, at most the newest max of them.
+    // Entries overwritten meanwhile or past the retention window are skipped.
+    void forEach(long after, long upto, int max, Consumer<Frame> action) {
+        long from = Math.max(after, Math.max(upto - max, upto - ring.length()));
+        long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+        for (long seq = from + 1; seq <= upto; seq++) {
+            Entry e = ring.get(slot(seq));
+            if (e != null && e.seq == seq && e.time >= cutoff) action.accept(e.frame);
+        }
+    }
+
+    int capacity() { return ring.length(); }
+
+    private int slot(long seq) {
+        return (int) (seq % ring.length());
+    }
+}
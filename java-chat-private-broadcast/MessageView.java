@@ -0,0 +1,193 @@
+package el;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// Chat transcript that keeps up with busy rooms. A JList only paints the rows in view, and its
+// fixed row height means nothing is measured per update; messages are wrapped into rows once, on
+// arrival. Lines from any thread are handed to the EDT at most once per frame, and past the
+// limit the oldest messages are dropped, so heap stays bounded however long the client runs.
+// The view follows new messages only while it is scrolled to the bottom.
+final class MessageView extends JScrollPane {
+    private static final long serialVersionUID = 1L;
+    private final int maxMessages;
+    private final int frameMillis;
+    private final JList<String> list;
+    private final Rows rows = new Rows();
+    // EDT only: retained messages and how many rows each was wrapped into
+    private final ArrayDeque<String> messages = new ArrayDeque<>();
+    private final ArrayDeque<Integer> rowCounts = new ArrayDeque<>();
+    private int wrapWidth = -1;
+    // Lines not yet on screen; any thread, guarded by itself
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private final Timer frame;
+    private boolean frameScheduled;
+
+    MessageView(int maxMessages, int frameMillis, Font font, Color background) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.frameMillis = Math.max(1, frameMillis);
+        list = new JList<>(rows);
+        list.setFont(font);
+        list.setBackground(background);
+        // Fixed row size, so the list never measures every row to lay itself out; it still
+        // stretches to the viewport's width
+        list.setFixedCellHeight(getFontMetrics(font).getHeight() + 2);
+        list.setFixedCellWidth(1);
+        list.setBorder(BorderFactory.createEmptyBorder(10, 15, 10, 15));
+        setViewportView(list);
+        setHorizontalScrollBarPolicy(HORIZONTAL_SCROLLBAR_NEVER);
+        getVerticalScrollBar().setUnitIncrement(list.getFixedCellHeight());
+        frame = new Timer(this.frameMillis, e -> flush());
+        frame.setRepeats(false);
+        getViewport().addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) { rewrap(); }
+        });
+    }
+
+    // Any thread; "\n" ends a line and splits multi-line messages into rows
+    void append(String text) {
+        synchronized (pending) {
+            pending.add(text);
+            // Lines that could never be shown are not worth holding
+            while (pending.size() > maxMessages) pending.poll();
+            if (frameScheduled) return;
+            frameScheduled = true;
+        }
+        SwingUtilities.invokeLater(frame::restart);
+    }
+
+    // EDT, once per frame: everything that arrived, in one model update and one repaint
+    private void flush() {
+        List<String> batch;
+        synchronized (pending) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            frameScheduled = false;
+        }
+        if (batch.isEmpty()) return;
+        JScrollBar bar = getVerticalScrollBar();
+        boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight();
+        List<String> added = new ArrayList<>();
+        for (String text : batch) {
+            int before = added.size();
+            wrap(text, added);
+            messages.add(text);
+            rowCounts.add(added.size() - before);
+        }
+        rows.add(added);
+        int dropped = 0;
+        while (messages.size() > maxMessages) {
+            messages.poll();
+            dropped += rowCounts.poll();
+        }
+        rows.removeFirst(dropped);
+        if (following) {
+            list.ensureIndexIsVisible(rows.getSize() - 1);
+        } else if (dropped > 0) {
+            // Keep what the reader is looking at in place as rows above it go
+            bar.setValue(Math.max(0, bar.getValue() - dropped * list.getFixedCellHeight()));
+        }
+    }
+
+    // EDT: wrap every retained message again for a new width
+    private void rewrap() {
+        int width = textWidth();
+        if (width == wrapWidth) return;
+        wrapWidth = width;
+        List<String> all = new ArrayList<>();
+        rowCounts.clear();
+        for (String text : messages) {
+            int before = all.size();
+            wrap(text, all);
+            rowCounts.add(all.size() - before);
+        }
+        rows.removeFirst(rows.getSize());
+        rows.add(all);
+        list.ensureIndexIsVisible(rows.getSize() - 1);
+    }
+
+    private int textWidth() {
+        Insets in = list.getInsets();
+        return getViewport().getWidth() - in.left - in.right - 8;
+    }
+
+    // Greedy word wrap to the view's width; a word wider than the view is broken where it must be
+    private void wrap(String text, List<String> out) {
+        if (wrapWidth < 0) wrapWidth = textWidth();
+        FontMetrics fm = list.getFontMetrics(list.getFont());
+        int end = text.endsWith("\n") ? text.length() - 1 : text.length();
+        int lineStart = 0;
+        while (lineStart <= end) {
+            int nl = text.indexOf('\n', lineStart);
+            if (nl < 0 || nl > end) nl = end;
+            String line = text.substring(lineStart, nl);
+            if (wrapWidth <= 0 || fm.stringWidth(line) <= wrapWidth) {
+                out.add(line);
+            } else {
+                int start = 0;
+                while (start < line.length()) {
+                    int fit = start;
+                    int lastSpace = -1;
+                    int width = 0;
+                    while (fit < line.length()) {
+                        width += fm.charWidth(line.charAt(fit));
+                        if (width > wrapWidth) break;
+                        if (line.charAt(fit) == ' ') lastSpace = fit;
+                        fit++;
+                    }
+                    if (fit < line.length() && lastSpace > start) {
+                        out.add(line.substring(start, lastSpace));
+                        start = lastSpace + 1;
+                        continue;
+                    }
+                    if (fit == start) fit++;
+                    out.add(line.substring(start, fit));
+                    start = fit;
+                }
+            }
+            lineStart = nl + 1;
+        }
+    }
+
+    // Ring of display rows; one event per batch added or trimmed
+    private static final class Rows extends AbstractListModel<String> {
+        private static final long serialVersionUID = 1L;
+        private String[] ring = new String[256];
+        private int head;
+        private int size;
+
+        public int getSize() { return size; }
+
+        public String getElementAt(int index) { return ring[(head + index) % ring.length]; }
+
+        void add(List<String> added) {
+            if (added.isEmpty()) return;
+            if (size + added.size() > ring.length) {
+                String[] bigger = new String[Integer.highestOneBit(size + added.size()) * 2];
+                for (int i = 0; i < size; i++) bigger[i] = getElementAt(i);
+                ring = bigger;
+                head = 0;
+            }
+            int first = size;
+            for (String row : added) {
+                ring[(head + size) % ring.length] = row;
+                size++;
+            }
+            fireIntervalAdded(this, first, size - 1);
+        }
+
+        void removeFirst(int n) {
+            n = Math.min(n, size);
+            if (n == 0) return;
+            for (int i = 0; i < n; i++) ring[(head + i) % ring.length] = null;
+            head = (head + n) % ring.length;
+            size -= n;
+            fireIntervalRemoved(this, 0, n - 1);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package el;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+// Server counters and histograms. Hot paths only touch striped LongAdders (no shared cache line
+// between I/O threads) and the lock-free LatencyHistogram; gauges such as queue depths are
+// computed when someone reads them. Read over a loopback HTTP endpoint or JMX.
+final class Metrics implements MetricsMBean {
+    final LongAdder accepted = new LongAdder();
+    final LongAdder loginsRejected = new LongAdder();
+    final LongAdder broadcasts = new LongAdder();
+    final LongAdder privates = new LongAdder();
+    final LongAdder roomMessages = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder slowConsumers = new LongAdder();
+    // Connections closed for not sending a login line within the handshake timeout
+    final LongAdder handshakeTimeouts = new LongAdder();
+    // Dropped connections picked up again from a held session
+    final LongAdder resumes = new LongAdder();
+    // Private messages kept for offline users, later delivered, or refused (mailbox or storage full)
+    final LongAdder mailStored = new LongAdder();
+    final LongAdder mailDelivered = new LongAdder();
+    final LongAdder mailRejected = new LongAdder();
+    // Times an inbound message had to wait for the sender's user or address bucket
+    final LongAdder throttledUser = new LongAdder();
+    final LongAdder throttledAddress = new LongAdder();
+    // Records exchanged with other cluster nodes
+    final LongAdder clusterIn = new LongAdder();
+    final LongAdder clusterOut = new LongAdder();
+    // Frames dropped by the overflow policy on connections that have since closed
+    final LongAdder droppedClosed = new LongAdder();
+    // Nanoseconds to enqueue one broadcast for every recipient; with routing shards, for every
+    // recipient in one shard
+    final LatencyHistogram fanout = new LatencyHistogram();
+    // Nanoseconds to run one SEARCH against the index
+    final LatencyHistogram search = new LatencyHistogram();
+
+    private final ChatCore core;
+    private final long startNanos = System.nanoTime();
+    private volatile long acceptRate, messageRate, frameRate, byteRate;
+
+    Metrics(ChatCore core) {
+        this.core = core;
+    }
+
+    // Ticker for the per-second rates, plus the HTTP endpoint and MBean when configured
+    void start() {
+        Thread ticker = new Thread(this::tick, "metrics-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+        if (ServerConfig.METRICS_PORT > 0) serve(ServerConfig.METRICS_PORT);
+        if (ServerConfig.JMX) register();
+    }
+
+    private void tick() {
+        long accepts = 0, messages = 0, frames = 0, bytes = 0;
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long a = accepted.sum(), m = getMessagesIn(), f = framesOut.sum(), b = bytesOut.sum();
+            acceptRate = a - accepts;
+            messageRate = m - messages;
+            frameRate = f - frames;
+            byteRate = b - bytes;
+            accepts = a; messages = m; frames = f; bytes = b;
+        }
+    }
+
+    // GET /metrics on the loopback interface only
+    private void serve(int port) {
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = getText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.setExecutor(null);
+            http.start();
+            core.log().add("[OK] Metrics on http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            core.log().add("[ERROR] Metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("el:type=ChatServer"));
+        } catch (Exception e) {
+            core.log().add("[WARN] JMX: " + e.getMessage());
+        }
+    }
+
+    // Blocking-mode input, counted as it comes off the socket
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    public long getUptimeSeconds() { return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos); }
+
+    public long getConnectionsAccepted() { return accepted.sum(); }
+
+    public long getAcceptsPerSecond() { return acceptRate; }
+
+    public long getLoginsRejected() { return loginsRejected.sum(); }
+
+    public int getClients() { return core.clientCount(); }
+
+    public int getRooms() { return core.roomCount(); }
+
+    public long getMessagesIn() { return broadcasts.sum() + privates.sum() + roomMessages.sum(); }
+
+    public long getMessagesInPerSecond() { return messageRate; }
+
+    public long getFramesOut() { return framesOut.sum(); }
+
+    public long getFramesOutPerSecond() { return frameRate; }
+
+    public long getBytesIn() { return bytesIn.sum(); }
+
+    public long getBytesOut() { return bytesOut.sum(); }
+
+    public long getBytesOutPerSecond() { return byteRate; }
+
+    public long getFramesDropped() {
+        long[] sum = { droppedClosed.sum() };
+        core.forEachTransport(t -> sum[0] += t.dropped());
+        return sum[0];
+    }
+
+    public long getSlowConsumers() { return slowConsumers.sum(); }
+
+    public long getHandshakeTimeouts() { return handshakeTimeouts.sum(); }
+
+    public int getHandshakesInProgress() { return core.handshakesInProgress(); }
+
+    public long getSessionsResumed() { return resumes.sum(); }
+
+    public int getSessionsHeld() { return core.heldSessions(); }
+
+    public long getMailStored() { return mailStored.sum(); }
+
+    public long getMailDelivered() { return mailDelivered.sum(); }
+
+    public long getMailRejected() { return mailRejected.sum(); }
+
+    public int getMailboxes() { return core.mailboxCount(); }
+
+    public long getMailboxMemoryBytes() { return core.mailboxMemoryBytes(); }
+
+    public long getMailboxSpilledBytes() { return core.mailboxSpilledBytes(); }
+
+    public long getThrottledByUser() { return throttledUser.sum(); }
+
+    public long getThrottledByAddress() { return throttledAddress.sum(); }
+
+    public long getClusterRecordsIn() { return clusterIn.sum(); }
+
+    public long getClusterRecordsOut() { return clusterOut.sum(); }
+
+    public long getOutboundQueued() {
+        long[] sum = { 0 };
+        core.forEachTransport(t -> sum[0] += t.queued());
+        return sum[0];
+    }
+
+    public long getOutboundQueueMax() {
+        long[] max = { 0 };
+        core.forEachTransport(t -> max[0] = Math.max(max[0], t.queued()));
+        return max[0];
+    }
+
+    public long getRouteQueued() { return core.routeQueued(); }
+
+    public long getFanoutCount() { return fanout.count(); }
+
+    public double getFanoutP50Micros() { return fanout.percentile(0.50) / 1e3; }
+
+    public double getFanoutP99Micros() { return fanout.percentile(0.99) / 1e3; }
+
+    public double getFanoutMaxMicros() { return fanout.max() / 1e3; }
+
+    public int getJournalQueued() { return core.journalQueued(); }
+
+    public long getJournalDropped() { return core.journalDropped(); }
+
+    public long getSearchIndexed() { return core.searchIndexed(); }
+
+    public int getSearchQueued() { return core.searchQueued(); }
+
+    public long getSearchDropped() { return core.searchDropped(); }
+
+    public long getSearchCount() { return search.count(); }
+
+    public double getSearchP99Micros() { return search.percentile(0.99) / 1e3; }
+
+    // Prometheus text exposition format
+    public String getText() {
+        LatencyHistogram depths = new LatencyHistogram();
+        core.forEachTransport(t -> depths.record(t.queued()));
+        StringBuilder sb = new StringBuilder();
+        line(sb, "chat_uptime_seconds", getUptimeSeconds());
+        line(sb, "chat_connections_accepted_total", getConnectionsAccepted());
+        line(sb, "chat_accepts_per_second", acceptRate);
+        line(sb, "chat_logins_rejected_total", getLoginsRejected());
+        line(sb, "chat_clients", getClients());
+        line(sb, "chat_rooms", getRooms());
+        line(sb, "chat_messages_in_total{kind=\"broadcast\"}", broadcasts.sum());
+        line(sb, "chat_messages_in_total{kind=\"private\"}", privates.sum());
+        line(sb, "chat_messages_in_total{kind=\"room\"}", roomMessages.sum());
+        line(sb, "chat_messages_in_per_second", messageRate);
+        line(sb, "chat_frames_out_total", getFramesOut());
+        line(sb, "chat_frames_out_per_second", frameRate);
+        line(sb, "chat_bytes_in_total", getBytesIn());
+        line(sb, "chat_bytes_out_total", getBytesOut());
+        line(sb, "chat_bytes_out_per_second", byteRate);
+        line(sb, "chat_frames_dropped_total", getFramesDropped());
+        line(sb, "chat_slow_consumers_total", getSlowConsumers());
+        line(sb, "chat_handshake_timeouts_total", getHandshakeTimeouts());
+        line(sb, "chat_handshakes_in_progress", getHandshakesInProgress());
+        line(sb, "chat_sessions_resumed_total", getSessionsResumed());
+        line(sb, "chat_sessions_held", getSessionsHeld());
+        line(sb, "chat_mail_total{state=\"stored\"}", getMailStored());
+        line(sb, "chat_mail_total{state=\"delivered\"}", getMailDelivered());
+        line(sb, "chat_mail_total{state=\"rejected\"}", getMailRejected());
+        line(sb, "chat_mailboxes", getMailboxes());
+        line(sb, "chat_mailbox_bytes{store=\"memory\"}", getMailboxMemoryBytes());
+        line(sb, "chat_mailbox_bytes{store=\"disk\"}", getMailboxSpilledBytes());
+        line(sb, "chat_throttled_total{limit=\"user\"}", getThrottledByUser());
+        line(sb, "chat_throttled_total{limit=\"address\"}", getThrottledByAddress());
+        line(sb, "chat_cluster_records_in_total", getClusterRecordsIn());
+        line(sb, "chat_cluster_records_out_total", getClusterRecordsOut());
+        line(sb, "chat_route_queued", getRouteQueued());
+        line(sb, "chat_outbound_queued", getOutboundQueued());
+        line(sb, "chat_outbound_queue_depth{quantile=\"0.5\"}", depths.percentile(0.50));
+        line(sb, "chat_outbound_queue_depth{quantile=\"0.99\"}", depths.percentile(0.99));
+        line(sb, "chat_outbound_queue_depth{quantile=\"1\"}", depths.max());
+        line(sb, "chat_fanout_seconds{quantile=\"0.5\"}", fanout.percentile(0.50) / 1e9);
+        line(sb, "chat_fanout_seconds{quantile=\"0.99\"}", fanout.percentile(0.99) / 1e9);
+        line(sb, "chat_fanout_seconds{quantile=\"0.999\"}", fanout.percentile(0.999) / 1e9);
+        line(sb, "chat_fanout_seconds{quantile=\"1\"}", fanout.max() / 1e9);
+        line(sb, "chat_fanout_seconds_count", fanout.count());
+        line(sb, "chat_fanout_seconds_sum", fanout.mean() * fanout.count() / 1e9);
+        line(sb, "chat_journal_queued", getJournalQueued());
+        line(sb, "chat_journal_dropped_total", getJournalDropped());
+        line(sb, "chat_search_indexed_total", getSearchIndexed());
+        line(sb, "chat_search_queued", getSearchQueued());
+        line(sb, "chat_search_dropped_total", getSearchDropped());
+        line(sb, "chat_search_seconds{quantile=\"0.5\"}", search.percentile(0.50) / 1e9);
+        line(sb, "chat_search_seconds{quantile=\"0.99\"}", search.percentile(0.99) / 1e9);
+        line(sb, "chat_search_seconds{quantile=\"1\"}", search.max() / 1e9);
+        line(sb, "chat_search_seconds_count", search.count());
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,93 @@
+package el;
+
+// JMX view of Metrics, registered as el:type=ChatServer. Rates are per second over the last full second.
+public interface MetricsMBean {
+    long getUptimeSeconds();
+
+    long getConnectionsAccepted();
+
+    long getAcceptsPerSecond();
+
+    long getLoginsRejected();
+
+    int getClients();
+
+    int getRooms();
+
+    long getMessagesIn();
+
+    long getMessagesInPerSecond();
+
+    long getFramesOut();
+
+    long getFramesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBytesOutPerSecond();
+
+    long getFramesDropped();
+
+    long getSlowConsumers();
+
+    long getHandshakeTimeouts();
+
+    int getHandshakesInProgress();
+
+    long getSessionsResumed();
+
+    int getSessionsHeld();
+
+    long getMailStored();
+
+    long getMailDelivered();
+
+    long getMailRejected();
+
+    int getMailboxes();
+
+    long getMailboxMemoryBytes();
+
+    long getMailboxSpilledBytes();
+
+    long getThrottledByUser();
+
+    long getThrottledByAddress();
+
+    long getClusterRecordsIn();
+
+    long getClusterRecordsOut();
+
+    long getOutboundQueued();
+
+    long getOutboundQueueMax();
+
+    long getRouteQueued();
+
+    long getFanoutCount();
+
+    double getFanoutP50Micros();
+
+    double getFanoutP99Micros();
+
+    double getFanoutMaxMicros();
+
+    int getJournalQueued();
+
+    long getJournalDropped();
+
+    long getSearchIndexed();
+
+    int getSearchQueued();
+
+    long getSearchDropped();
+
+    long getSearchCount();
+
+    double getSearchP99Micros();
+
+    // Everything above in the text format served over HTTP
+    String getText();
+}
@@ -0,0 +1,469 @@
+package el;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One selector thread serving many non-blocking client channels
+final class NioEventLoop extends Thread {
+    private static final long HANDSHAKE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(ServerConfig.HANDSHAKE_TIMEOUT_MILLIS);
+
+    private final ChatCore server;
+    private final Metrics metrics;
+    private final BufferPool pool;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only this thread reads, so all of its connections share one read buffer
+    private final ByteBuffer readBuffer;
+    // Scratch array for gathering writes, reused across connections
+    private final ByteBuffer[] gather = new ByteBuffer[ServerConfig.GATHER_FRAMES];
+    // Connections paused by the rate limiter, soonest resume first; loop thread only
+    private final PriorityQueue<Connection> paused =
+        new PriorityQueue<>(Comparator.comparingLong((Connection c) -> c.resumeAt));
+    // Connections still waiting for their login line, in accept order and so in deadline order; loop thread only
+    private final ArrayDeque<Connection> handshaking = new ArrayDeque<>();
+    private volatile boolean running = true;
+
+    NioEventLoop(ChatCore server, BufferPool pool, int index) throws IOException {
+        super("nio-loop-" + index);
+        this.server = server;
+        this.metrics = server.metrics();
+        this.pool = pool;
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(ServerConfig.READ_BUFFER_SIZE);
+        setDaemon(true);
+    }
+
+    // Hand over a freshly accepted channel; registration happens on the loop thread
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.handshakeDeadline = System.nanoTime() + HANDSHAKE_TIMEOUT;
+                if (HANDSHAKE_TIMEOUT > 0) handshaking.add(conn);
+            } catch (IOException e) {
+                try { channel.close(); } catch (IOException ignored) {}
+                server.handshakeDone();
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (running) {
+                select();
+                runTasks();
+                runTimers();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection conn = (Connection) key.attachment();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isReadable() && !conn.paused) read(conn);
+                        if (key.isValid() && key.isWritable()) flush(conn);
+                    } catch (RuntimeException e) {
+                        failed(conn, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            server.logError("I/O loop " + getName() + " stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).closeNow();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                server.logError("I/O loop " + getName() + ": " + e);
+            }
+        }
+    }
+
+    // A bug in one connection's handling costs that connection, never the loop and its other clients
+    private void failed(Connection conn, RuntimeException e) {
+        server.logError("I/O loop " + getName() + ": " + e);
+        try {
+            conn.closeNow();
+        } catch (RuntimeException again) {
+            server.logError("I/O loop " + getName() + ": " + again);
+        }
+    }
+
+    // Block until I/O, a task, the next paused connection or the next handshake deadline is due
+    private void select() throws IOException {
+        Connection next = paused.peek();
+        Connection login = handshaking.peek();
+        if (next == null && login == null) {
+            selector.select();
+            return;
+        }
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        if (next != null) wait = next.resumeAt - now;
+        if (login != null) wait = Math.min(wait, login.handshakeDeadline - now);
+        if (wait <= 0) {
+            selector.selectNow();
+        } else {
+            selector.select(Math.max(1, (wait + 999_999) / 1_000_000));
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        Connection conn;
+        while ((conn = paused.peek()) != null && conn.resumeAt - now <= 0) {
+            paused.poll();
+            try {
+                resume(conn);
+            } catch (RuntimeException e) {
+                failed(conn, e);
+            }
+        }
+        // Dropped at their deadline if they never sent a login line; logged-in ones just leave the queue
+        while ((conn = handshaking.peek()) != null && (!conn.handshaking || conn.handshakeDeadline - now <= 0)) {
+            handshaking.poll();
+            if (conn.handshaking) {
+                metrics.handshakeTimeouts.increment();
+                conn.closeNow();
+            }
+        }
+    }
+
+    private void read(Connection conn) {
+        if (conn.binary) {
+            readFrames(conn);
+            return;
+        }
+        readBuffer.clear();
+        if (!fill(conn, readBuffer)) return;
+        readBuffer.flip();
+        parseLines(conn, readBuffer);
+    }
+
+    // Split complete lines out of src; keep any tail for the next read
+    private void parseLines(Connection conn, ByteBuffer src) {
+        while (src.hasRemaining() && !conn.closing) {
+            int nl = indexOf(src, (byte) '\n');
+            if (nl < 0) {
+                if (!conn.stash(src)) conn.closeNow();
+                return;
+            }
+            ByteBuffer line = src.slice();
+            line.limit(nl - src.position());
+            src.position(nl + 1);
+            String text;
+            if (conn.carry != null) {
+                if (!conn.stash(line)) {
+                    conn.closeNow();
+                    return;
+                }
+                ByteBuffer carry = conn.carry;
+                conn.carry = null;
+                carry.flip();
+                text = decode(carry);
+                pool.release(carry);
+            } else {
+                text = decode(line);
+            }
+            if (throttle(conn, src)) {
+                conn.pendingLine = text;
+                return;
+            }
+            conn.onLine(text);
+            // Login negotiated the binary protocol: the rest of this read is frames
+            if (conn.binary) {
+                parseFrames(conn, src);
+                return;
+            }
+        }
+    }
+
+    // Binary protocol: read straight into the connection's partial-frame buffer when it has one
+    private void readFrames(Connection conn) {
+        ByteBuffer buf = conn.carry;
+        if (buf == null) {
+            buf = readBuffer;
+            buf.clear();
+        }
+        if (!fill(conn, buf)) return;
+        buf.flip();
+        parseFrames(conn, buf);
+    }
+
+    // Dispatch every complete length-prefixed frame in buf; keep a partial one for the next read
+    private void parseFrames(Connection conn, ByteBuffer buf) {
+        while (!conn.closing && buf.remaining() >= 4) {
+            int length = buf.getInt(buf.position());
+            if (length <= 0 || length > pool.bufferSize() - 4) {
+                conn.closeNow();
+                return;
+            }
+            if (buf.remaining() < 4 + length) break;
+            if (throttle(conn, buf)) break;
+            ByteBuffer frame = buf.slice();
+            frame.position(4).limit(4 + length);
+            buf.position(buf.position() + 4 + length);
+            conn.onFrame(frame.slice());
+        }
+        if (conn.closed.get()) return;
+        if (buf == conn.carry) {
+            if (buf.hasRemaining()) {
+                buf.compact();
+            } else {
+                pool.release(buf);
+                conn.carry = null;
+            }
+        } else if (buf.hasRemaining()) {
+            conn.carry = pool.acquire();
+            conn.carry.put(buf);
+        }
+    }
+
+    // Over its rate: set aside whatever is left of src (from the message that was refused on) and
+    // stop reading the channel until a token is due. Unread input then backs up into the socket
+    // buffers and TCP holds the sender back, instead of the server queueing it in memory.
+    private boolean throttle(Connection conn, ByteBuffer src) {
+        if (conn.handler == null) return false;
+        long wait = conn.handler.admit();
+        if (wait <= 0) return false;
+        if (src.hasRemaining()) {
+            conn.backlog = ByteBuffer.allocate(src.remaining()).put(src).flip();
+        }
+        pause(conn, wait);
+        return true;
+    }
+
+    private void pause(Connection conn, long wait) {
+        conn.paused = true;
+        conn.resumeAt = System.nanoTime() + wait;
+        paused.add(conn);
+        try {
+            conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            conn.closeNow();
+        }
+    }
+
+    // Handle what was set aside when the connection paused, then read from the channel again
+    private void resume(Connection conn) {
+        if (conn.closing) return;
+        conn.paused = false;
+        if (conn.pendingLine != null) {
+            long wait = conn.handler.admit();
+            if (wait > 0) {
+                pause(conn, wait);
+                return;
+            }
+            String line = conn.pendingLine;
+            conn.pendingLine = null;
+            conn.onLine(line);
+        }
+        ByteBuffer backlog = conn.backlog;
+        conn.backlog = null;
+        if (backlog != null) {
+            if (conn.binary) {
+                parseFrames(conn, backlog);
+            } else {
+                parseLines(conn, backlog);
+            }
+        }
+        if (conn.paused || conn.closing) return;
+        try {
+            conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            conn.closeNow();
+        }
+    }
+
+    // One channel read; false (and the connection closed) at end of stream
+    private boolean fill(Connection conn, ByteBuffer buf) {
+        int n;
+        try {
+            n = conn.channel.read(buf);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            conn.closeNow();
+            return false;
+        }
+        metrics.bytesIn.add(n);
+        return true;
+    }
+
+    private void flush(Connection conn) {
+        if (conn.closed.get() || conn.key == null) return;
+        try {
+            do {
+                while (true) {
+                    Frame frame;
+                    int taken = 0;
+                    while (conn.inFlight.size() < gather.length && (frame = conn.outbound().poll()) != null) {
+                        conn.inFlight.add(frame.buffer());
+                        taken++;
+                    }
+                    if (taken > 0) metrics.framesOut.add(taken);
+                    if (conn.inFlight.isEmpty()) break;
+
+                    // One gathering write for everything queued, straight from the shared frames
+                    int n = 0;
+                    for (ByteBuffer b : conn.inFlight) gather[n++] = b;
+                    metrics.bytesOut.add(conn.channel.write(gather, 0, n));
+                    Arrays.fill(gather, 0, n, null);
+                    while (!conn.inFlight.isEmpty() && !conn.inFlight.peek().hasRemaining()) {
+                        conn.inFlight.poll();
+                    }
+                    if (!conn.inFlight.isEmpty()) {
+                        // Socket buffer full: resume when the selector says it drained
+                        conn.key.interestOps(conn.readOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                conn.key.interestOps(conn.readOps());
+            } while (conn.finishDrain());
+        } catch (IOException | CancelledKeyException e) {
+            conn.closeNow();
+        }
+    }
+
+    private static int indexOf(ByteBuffer buf, byte b) {
+        for (int i = buf.position(); i < buf.limit(); i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    private static String decode(ByteBuffer line) {
+        int len = line.remaining();
+        if (len > 0 && line.get(line.position() + len - 1) == '\r') line.limit(line.limit() - 1);
+        return StandardCharsets.UTF_8.decode(line).toString();
+    }
+
+    // Per-channel state; a connection only owns a pooled buffer while a line is split across reads
+    final class Connection extends QueuedTransport {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer carry;
+        // Frames taken off the queue but not fully written; never dropped on overflow
+        final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+        ChatCore.ClientHandler handler;
+        // Switched on at login; from then on inbound bytes are BinaryProtocol frames
+        boolean binary;
+        final AtomicBoolean closed = new AtomicBoolean();
+        // Set as soon as close is requested; queued output is still flushed first
+        volatile boolean closing;
+        // Rate limited: reads are off until resumeAt; the refused message and any bytes read
+        // after it wait in pendingLine/backlog
+        boolean paused;
+        long resumeAt;
+        String pendingLine;
+        ByteBuffer backlog;
+        // Holds one of the server's handshake slots until the login line is handled
+        boolean handshaking = true;
+        long handshakeDeadline;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // Called on the loop thread for every complete inbound line
+        void onLine(String line) {
+            if (handshaking) {
+                endHandshake();
+                handler = server.login(line, this);
+                binary = handler != null && handler.binary();
+                return;
+            }
+            if (handler == null) return;
+            if (!handler.onLine(line)) handler.disconnect();
+        }
+
+        void onFrame(ByteBuffer frame) {
+            if (!handler.onFrame(frame)) handler.disconnect();
+        }
+
+        boolean stash(ByteBuffer bytes) {
+            if (carry == null) carry = pool.acquire();
+            if (carry.remaining() < bytes.remaining()) return false;
+            carry.put(bytes);
+            return true;
+        }
+
+        OutboundQueue<Frame> outbound() { return outbound; }
+
+        int readOps() { return paused ? 0 : SelectionKey.OP_READ; }
+
+        protected void scheduleDrain() {
+            execute(() -> flush(this));
+        }
+
+        protected boolean isClosed() { return closed.get(); }
+
+        public InetAddress address() { return channel.socket().getInetAddress(); }
+
+        // Runs after any flush already scheduled, so queued output goes first
+        public void close() {
+            if (closing) return;
+            closing = true;
+            execute(this::closeNow);
+        }
+
+        public void abort() {
+            closing = true;
+            outbound.clear();
+            execute(this::closeNow);
+        }
+
+        void endHandshake() {
+            if (!handshaking) return;
+            handshaking = false;
+            server.handshakeDone();
+        }
+
+        // Loop thread only
+        void closeNow() {
+            closing = true;
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try { channel.close(); } catch (IOException ignored) {}
+            if (carry != null) {
+                pool.release(carry);
+                carry = null;
+            }
+            outbound.clear();
+            inFlight.clear();
+            if (paused) NioEventLoop.this.paused.remove(this);
+            backlog = null;
+            endHandshake();
+            if (handler != null) handler.connectionLost(this);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package el;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+
+// Non-blocking server: one accept thread feeding a fixed set of selector loops
+final class NioServer {
+    private final ChatCore server;
+    private final NioEventLoop[] loops;
+    private final BufferPool pool;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    NioServer(ChatCore server, int ioThreads) throws IOException {
+        this.server = server;
+        this.pool = new BufferPool(ServerConfig.MAX_LINE_LENGTH, ServerConfig.POOLED_BUFFERS);
+        this.loops = new NioEventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(server, pool, i);
+        }
+    }
+
+    void start(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+        for (NioEventLoop loop : loops) loop.start();
+
+        Thread acceptor = new Thread(() -> {
+            int next = 0;
+            try {
+                while (running) {
+                    SocketChannel channel = serverChannel.accept();
+                    server.metrics().accepted.increment();
+                    // With every handshake slot taken, wait here; later connections queue in the backlog
+                    while (!server.awaitHandshake()) {
+                        if (!running) {
+                            channel.close();
+                            return;
+                        }
+                    }
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+            } catch (IOException e) {
+                if (running) server.logError(e.getMessage());
+            }
+        }, "nio-acceptor");
+        acceptor.start();
+    }
+
+    int loopCount() { return loops.length; }
+
+    void stop() {
+        running = false;
+        try { if (serverChannel != null) serverChannel.close(); } catch (IOException ignored) {}
+        for (NioEventLoop loop : loops) loop.shutdown();
+    }
+}
@@ -0,0 +1,60 @@
+package el;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded, lock-free per-client outbound queue: many routing threads offer, one writer polls
+final class OutboundQueue<E> {
+    enum OverflowPolicy {
+        DROP_OLDEST, DISCONNECT;
+
+        static OverflowPolicy parse(String s) {
+            return "disconnect".equalsIgnoreCase(s) ? DISCONNECT : DROP_OLDEST;
+        }
+    }
+
+    private final Queue<E> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // False when the queue is full and the policy says to drop the consumer
+    boolean offer(E e) {
+        if (size.incrementAndGet() > capacity) {
+            if (policy == OverflowPolicy.DISCONNECT) {
+                size.decrementAndGet();
+                return false;
+            }
+            if (queue.poll() != null) {
+                size.decrementAndGet();
+                dropped.increment();
+            }
+        }
+        queue.add(e);
+        return true;
+    }
+
+    E poll() {
+        E e = queue.poll();
+        if (e != null) size.decrementAndGet();
+        return e;
+    }
+
+    boolean isEmpty() { return queue.isEmpty(); }
+
+    int size() { return Math.max(0, size.get()); }
+
+    long dropped() { return dropped.sum(); }
+
+    void clear() {
+        while (poll() != null) {}
+    }
+}
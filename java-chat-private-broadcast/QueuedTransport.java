@@ -0,0 +1,37 @@
+package el;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Transport whose writes only enqueue; a single writer per connection drains the queue
+abstract class QueuedTransport implements Transport {
+    protected final OutboundQueue<Frame> outbound =
+        new OutboundQueue<>(ServerConfig.OUTBOUND_QUEUE, ServerConfig.OVERFLOW_POLICY);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public boolean write(Frame frame) {
+        if (isClosed()) return true;
+        if (!outbound.offer(frame)) return false;
+        drainSoon();
+        return true;
+    }
+
+    // Start the writer unless it is already scheduled or running
+    protected final void drainSoon() {
+        if (scheduled.compareAndSet(false, true)) scheduleDrain();
+    }
+
+    public int queued() { return outbound.size(); }
+
+    public long dropped() { return outbound.dropped(); }
+
+    // Writer side, once the queue looks empty: true if more arrived meanwhile and this writer keeps going
+    protected final boolean finishDrain() {
+        scheduled.set(false);
+        return !outbound.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+
+    // Arrange for the writer to run; never writes on the caller's thread
+    protected abstract void scheduleDrain();
+
+    protected abstract boolean isClosed();
+}
@@ -0,0 +1,50 @@
+package el;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Inbound message limits: one bucket per logged-in user and one shared by every connection
+// from the same address. A rate of 0 turns that limit off.
+final class RateLimiter {
+    private static final long SWEEP_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final double userRate;
+    private final int userBurst;
+    private final double addressRate;
+    private final int addressBurst;
+    private final ConcurrentHashMap<InetAddress, TokenBucket> byAddress = new ConcurrentHashMap<>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_NANOS);
+
+    RateLimiter(double userRate, int userBurst, double addressRate, int addressBurst) {
+        this.userRate = userRate;
+        this.userBurst = userBurst;
+        this.addressRate = addressRate;
+        this.addressBurst = addressBurst;
+    }
+
+    static RateLimiter fromConfig() {
+        return new RateLimiter(ServerConfig.USER_RATE, ServerConfig.USER_BURST,
+                               ServerConfig.ADDRESS_RATE, ServerConfig.ADDRESS_BURST);
+    }
+
+    TokenBucket forUser() {
+        return userRate > 0 ? new TokenBucket(userRate, userBurst) : null;
+    }
+
+    TokenBucket forAddress(InetAddress address) {
+        if (addressRate <= 0 || address == null) return null;
+        sweep();
+        return byAddress.computeIfAbsent(address, a -> new TokenBucket(addressRate, addressBurst));
+    }
+
+    // Forget addresses whose buckets have refilled, at most once a minute. A connection still
+    // holding a forgotten bucket keeps using it; a new one from that address starts afresh.
+    private void sweep() {
+        long now = System.nanoTime();
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_NANOS)) return;
+        byAddress.values().removeIf(b -> b.idle(now));
+    }
+}
@@ -0,0 +1,48 @@
+package el;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The last frames sent to one resumable session, numbered the way its client counts what it
+// receives: lines for text clients, frames for binary ones. No acks are sent while connected;
+// a reconnecting client reports its count and gets exactly the frames after it. Holds shared
+// Frame references, not copies. Not thread-safe: the session's lock guards it.
+final class ResumeBuffer {
+    private final Frame[] frames;
+    // Client's count before each frame, parallel to frames
+    private final long[] starts;
+    private long sent;
+    private int size;
+    private int next;
+
+    ResumeBuffer(int capacity) {
+        frames = new Frame[Math.max(1, capacity)];
+        starts = new long[frames.length];
+    }
+
+    void add(Frame frame, int units) {
+        frames[next] = frame;
+        starts[next] = sent;
+        sent += units;
+        next = (next + 1) % frames.length;
+        if (size < frames.length) size++;
+    }
+
+    // Oldest first, everything sent after the client's count; null if the client claims more
+    // than was sent, stopped part way through a frame, or missed frames no longer held
+    List<Frame> after(long received) {
+        if (received > sent) return null;
+        List<Frame> missed = new ArrayList<>();
+        if (received == sent) return missed;
+        int oldest = (next - size + frames.length) % frames.length;
+        for (int i = 0; i < size; i++) {
+            int slot = (oldest + i) % frames.length;
+            if (missed.isEmpty()) {
+                if (starts[slot] < received) continue;
+                if (starts[slot] > received) return null;
+            }
+            missed.add(frames[slot]);
+        }
+        return missed.isEmpty() ? null : missed;
+    }
+}
@@ -0,0 +1,25 @@
+package el;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One chat room: its local subscribers and a lock that keeps its messages in one order for
+// every member. Rooms are independent, so fan-out in one never waits for another.
+final class Room {
+    static final int MAX_NAME = 64;
+
+    final String name;
+    final Set<ChatCore.ClientHandler> members = ConcurrentHashMap.newKeySet();
+    final ReentrantLock lock = new ReentrantLock();
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    // Room names travel inside ':'- and ','-separated lines
+    static boolean validName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_NAME
+            && name.indexOf(':') < 0 && name.indexOf(',') < 0 && name.trim().equals(name);
+    }
+}
@@ -0,0 +1,192 @@
+package el;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Routing engine that spreads delivery across cores. Local users are split across N shards by
+// name; each shard has one thread, and only that thread routes broadcasts and private messages
+// to its users, so its member list needs no lock. Shards are fed by lock-free multi-producer,
+// single-consumer queues. A broadcast is one task offered to every shard in the order the
+// broadcast lock gave it, so all users see broadcasts in the same order. Everything sent to one
+// user goes through one FIFO queue, so a conversation arrives in the order it was sent.
+final class Router {
+    private static final byte BROADCAST = 0;
+    private static final byte DIRECT = 1;
+    private static final byte ADD = 2;
+    private static final byte REMOVE = 3;
+
+    private static final class Task {
+        final byte kind;
+        final ChatCore.ClientHandler target;
+        final Frame text;
+        final Frame binary;
+
+        Task(byte kind, ChatCore.ClientHandler target, Frame text, Frame binary) {
+            this.kind = kind; this.target = target; this.text = text; this.binary = binary;
+        }
+    }
+
+    private static final class Node {
+        volatile Node next;
+        Task task;
+
+        Node(Task task) { this.task = task; }
+    }
+
+    private final Shard[] shards;
+    private final ChatCore core;
+    private final Metrics metrics;
+
+    Router(int shards, int capacity, ChatCore core) {
+        this.core = core;
+        this.metrics = core.metrics();
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) this.shards[i] = new Shard(i, capacity);
+    }
+
+    // A logged-in user starts getting broadcasts from its shard after every broadcast already offered
+    void add(ChatCore.ClientHandler c) {
+        shardOf(c).offer(new Task(ADD, c, null, null));
+    }
+
+    void remove(ChatCore.ClientHandler c) {
+        shardOf(c).offer(new Task(REMOVE, c, null, null));
+    }
+
+    // Caller holds the broadcast lock, so every shard sees broadcasts in the same order. Never
+    // waits: the caller calls awaitCapacity() once the lock is released.
+    void broadcast(Frame text, Frame binary) {
+        Task task = new Task(BROADCAST, null, text, binary);
+        for (Shard s : shards) s.offer(task);
+    }
+
+    // One message for one user, e.g. a private message or its SENT confirmation
+    void send(ChatCore.ClientHandler c, Frame text, Frame binary) {
+        shardOf(c).offer(new Task(DIRECT, c, text, binary));
+    }
+
+    // Backpressure, for a caller holding no lock: past capacity it waits until every shard has
+    // caught up, so a reader thread stops reading and its client's TCP window pushes back, as
+    // with the rate limits. A shard never waits, not even on itself: it may be the one that has
+    // to drain.
+    void awaitCapacity() {
+        if (onShardThread()) return;
+        for (Shard s : shards) s.awaitCapacity();
+    }
+
+    // The same for a message to one user: only that user's shard is waited on
+    void awaitCapacity(ChatCore.ClientHandler c) {
+        if (!onShardThread()) shardOf(c).awaitCapacity();
+    }
+
+    long queued() {
+        long n = 0;
+        for (Shard s : shards) n += s.size.get();
+        return n;
+    }
+
+    private boolean onShardThread() {
+        Thread current = Thread.currentThread();
+        for (Shard s : shards) if (s.thread == current) return true;
+        return false;
+    }
+
+    private Shard shardOf(ChatCore.ClientHandler c) {
+        return shards[Math.floorMod(c.username().hashCode(), shards.length)];
+    }
+
+    private final class Shard {
+        private final int capacity;
+        private final Thread thread;
+        // Vyukov's MPSC queue: producers swap the tail, the shard alone follows head
+        private final AtomicReference<Node> tail;
+        private Node head;
+        private final AtomicInteger size = new AtomicInteger();
+        private volatile boolean idle;
+        // Shard thread only
+        private final ArrayList<ChatCore.ClientHandler> members = new ArrayList<>();
+
+        Shard(int index, int capacity) {
+            this.capacity = Math.max(1, capacity);
+            head = new Node(null);
+            tail = new AtomicReference<>(head);
+            thread = new Thread(this::run, "route-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Never waits, so a full shard can't hold up a producer that holds a lock; capacity is
+        // enforced afterwards through awaitCapacity
+        void offer(Task task) {
+            size.incrementAndGet();
+            Node n = new Node(task);
+            tail.getAndSet(n).next = n;
+            if (idle) LockSupport.unpark(thread);
+        }
+
+        void awaitCapacity() {
+            while (size.get() >= capacity) LockSupport.parkNanos(10_000);
+        }
+
+        private Task poll() {
+            Node next = head.next;
+            if (next == null) return null;
+            head = next;
+            Task task = next.task;
+            next.task = null;
+            size.decrementAndGet();
+            return task;
+        }
+
+        private void run() {
+            while (true) {
+                Task task = poll();
+                if (task == null) {
+                    // Set idle before the last look, so an offer either sees it or is seen here
+                    idle = true;
+                    if (head.next == null && tail.get() == head) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    idle = false;
+                    continue;
+                }
+                try {
+                    handle(task);
+                } catch (RuntimeException e) {
+                    // One bad delivery must not stop the shard's other users
+                    core.logError("route shard: " + e);
+                }
+            }
+        }
+
+        private void handle(Task task) {
+            switch (task.kind) {
+                case BROADCAST: {
+                    long start = System.nanoTime();
+                    for (int i = 0, n = members.size(); i < n; i++) members.get(i).send(task.text, task.binary);
+                    metrics.fanout.record(System.nanoTime() - start);
+                    break;
+                }
+                case DIRECT:
+                    task.target.send(task.text, task.binary);
+                    break;
+                case ADD:
+                    task.target.shardSlot = members.size();
+                    members.add(task.target);
+                    break;
+                default: {
+                    // Swap the last member into the leaving one's place
+                    int slot = task.target.shardSlot;
+                    if (slot < 0 || slot >= members.size() || members.get(slot) != task.target) break;
+                    ChatCore.ClientHandler last = members.remove(members.size() - 1);
+                    if (last != task.target) {
+                        members.set(slot, last);
+                        last.shardSlot = slot;
+                    }
+                    task.target.shardSlot = -1;
+                }
+            }
+        }
+    }
+}
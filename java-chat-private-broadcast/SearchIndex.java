@@ -0,0 +1,300 @@
+package el;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+// Inverted index over broadcasts and private messages, for SEARCH. The routing path only queues
+// a record; the "search-index" thread adds everything queued in one batch under the write lock,
+// and queries share the read lock, so fan-out never waits on either. The queue is bounded: if
+// the indexer falls that far behind, the oldest queued records are dropped and counted. Messages live in fixed-size
+// segments, each with its own postings (term or sender -> ascending ids within the segment).
+// Past capacity the oldest segment is dropped whole; nothing is ever removed from a posting list.
+final class SearchIndex {
+    static final int SEGMENT = 1 << 16;
+    // Longer terms are indexed and searched by their first MAX_TERM characters
+    static final int MAX_TERM = 32;
+    // Matches are counted up to here and no further once the page is filled, so a query for
+    // a common word costs about as much as one for a rare word
+    static final int MAX_COUNT = 10_000;
+
+    static final class Hit {
+        final long time;
+        final String sender;
+        // Null for a broadcast
+        final String recipient;
+        final String text;
+
+        Hit(long time, String sender, String recipient, String text) {
+            this.time = time; this.sender = sender; this.recipient = recipient; this.text = text;
+        }
+    }
+
+    static final class Page {
+        final int total;
+        final List<Hit> hits;
+
+        Page(int total, List<Hit> hits) {
+            this.total = total; this.hits = hits;
+        }
+    }
+
+    // Words (all must match), "from:user", and "after:" / "before:" as a date, date-time or
+    // epoch millis, e.g. "deploy from:alice after:2024-05-01"
+    static final class Query {
+        final List<String> terms = new ArrayList<>();
+        String from;
+        long after = Long.MIN_VALUE;
+        long before = Long.MAX_VALUE;
+
+        static Query parse(String text) {
+            Query q = new Query();
+            for (String word : text.trim().split("\\s+")) {
+                if (word.startsWith("from:") && word.length() > 5) {
+                    q.from = word.substring(5);
+                } else if (word.startsWith("after:")) {
+                    q.after = time(word.substring(6), false);
+                } else if (word.startsWith("before:")) {
+                    q.before = time(word.substring(7), true);
+                } else {
+                    tokenize(word, q.terms::add);
+                }
+            }
+            return q;
+        }
+
+        // A bare date means its whole day: from its start for after:, to its end for before:
+        private static long time(String s, boolean endOfDay) {
+            try {
+                if (!s.isEmpty() && s.chars().allMatch(Character::isDigit)) return Long.parseLong(s);
+                if (s.length() == 10) {
+                    LocalDate day = LocalDate.parse(s);
+                    if (endOfDay) day = day.plusDays(1);
+                    return day.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - (endOfDay ? 1 : 0);
+                }
+                return LocalDateTime.parse(s).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException("Bad time: " + s);
+            }
+        }
+
+        boolean empty() {
+            return terms.isEmpty() && from == null && after == Long.MIN_VALUE && before == Long.MAX_VALUE;
+        }
+    }
+
+    // Ascending ids, appended in order
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) return;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    private static final class Segment {
+        final long[] times = new long[SEGMENT];
+        final int[] senders = new int[SEGMENT];
+        // Name id of a private message's recipient, -1 for a broadcast
+        final int[] recipients = new int[SEGMENT];
+        final String[] texts = new String[SEGMENT];
+        final HashMap<String, Postings> terms = new HashMap<>();
+        final HashMap<Integer, Postings> bySender = new HashMap<>();
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        int size;
+    }
+
+    private final int maxSegments;
+    private final OutboundQueue<Journal.Record> pending;
+    private final int queueCapacity;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Oldest first; guarded by lock, as are the names
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final HashMap<String, Integer> nameIds = new HashMap<>();
+    private final ArrayList<String> names = new ArrayList<>();
+    private final Thread indexer;
+    private volatile boolean idle;
+    private volatile long indexed;
+
+    SearchIndex(int capacity, int queueCapacity) {
+        maxSegments = Math.max(1, (capacity + SEGMENT - 1) / SEGMENT);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        pending = new OutboundQueue<>(this.queueCapacity, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        indexer = new Thread(this::indexLoop, "search-index");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // Routing path: one allocation and a lock-free enqueue. Recipient null for a broadcast.
+    void add(long time, String sender, String recipient, String text) {
+        pending.offer(new Journal.Record(recipient == null ? Journal.BROADCAST : Journal.PRIVATE, time, sender, recipient, text));
+        if (idle) LockSupport.unpark(indexer);
+    }
+
+    // Startup replay and benchmarks: like add, but waits for room rather than dropping
+    void load(long time, String sender, String recipient, String text) {
+        while (pending.size() >= queueCapacity) {
+            LockSupport.unpark(indexer);
+            LockSupport.parkNanos(100_000);
+        }
+        add(time, sender, recipient, text);
+    }
+
+    long indexed() { return indexed; }
+
+    // Records waiting for the indexer, and those dropped because it fell behind
+    int queued() { return pending.size(); }
+
+    long dropped() { return pending.dropped(); }
+
+    // Last page a search may ask for: pages past MAX_COUNT matches would scan the whole index
+    static int maxPage(int pageSize) {
+        return MAX_COUNT / Math.max(1, pageSize);
+    }
+
+    // Newest first, the page'th run of pageSize matches that user may see: broadcasts, and
+    // private messages they sent or received. The total stops at MAX_COUNT, or at the end of
+    // the page when that is further. Pages are clamped to 0..maxPage.
+    Page search(Query q, String user, int page, int pageSize) {
+        pageSize = Math.max(1, pageSize);
+        int skip = Math.min(Math.max(0, page), maxPage(pageSize)) * pageSize;
+        List<Hit> hits = new ArrayList<>(pageSize);
+        int total = 0;
+        lock.readLock().lock();
+        try {
+            Integer me = nameIds.get(user);
+            Integer from = q.from == null ? null : nameIds.get(q.from);
+            if (q.from != null && from == null) return new Page(0, hits);
+            Iterator<Segment> newest = segments.descendingIterator();
+            while (newest.hasNext() && total < Math.max(MAX_COUNT, skip + pageSize)) {
+                Segment s = newest.next();
+                if (s.maxTime < q.after || s.minTime > q.before) continue;
+                List<Postings> lists = new ArrayList<>(q.terms.size() + 1);
+                boolean missing = false;
+                for (String term : q.terms) {
+                    Postings p = s.terms.get(term);
+                    if (p == null) { missing = true; break; }
+                    lists.add(p);
+                }
+                if (!missing && from != null) {
+                    Postings p = s.bySender.get(from);
+                    if (p == null) missing = true; else lists.add(p);
+                }
+                if (missing) continue;
+                // Walk the shortest list down; a cursor per other list follows it down too, so
+                // intersecting costs one pass over each list rather than a search per id
+                lists.sort(Comparator.comparingInt(p -> p.size));
+                Postings drive = lists.isEmpty() ? null : lists.get(0);
+                int[] cursors = new int[lists.size()];
+                for (int k = 1; k < lists.size(); k++) cursors[k] = lists.get(k).size - 1;
+                int n = drive == null ? s.size : drive.size;
+                for (int i = n - 1; i >= 0 && total < Math.max(MAX_COUNT, skip + pageSize); i--) {
+                    int id = drive == null ? i : drive.ids[i];
+                    if (!matches(s, id, lists, cursors, q, me)) continue;
+                    if (total >= skip && hits.size() < pageSize) {
+                        int to = s.recipients[id];
+                        hits.add(new Hit(s.times[id], names.get(s.senders[id]), to < 0 ? null : names.get(to), s.texts[id]));
+                    }
+                    total++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new Page(total, hits);
+    }
+
+    private static boolean matches(Segment s, int id, List<Postings> lists, int[] cursors, Query q, Integer me) {
+        for (int k = 1; k < lists.size(); k++) {
+            int[] ids = lists.get(k).ids;
+            int c = cursors[k];
+            while (c >= 0 && ids[c] > id) c--;
+            cursors[k] = c;
+            if (c < 0 || ids[c] != id) return false;
+        }
+        long time = s.times[id];
+        if (time < q.after || time > q.before) return false;
+        int to = s.recipients[id];
+        return to < 0 || (me != null && (s.senders[id] == me || to == me));
+    }
+
+    private void indexLoop() {
+        while (true) {
+            Journal.Record r = pending.poll();
+            if (r == null) {
+                idle = true;
+                if (pending.isEmpty()) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                idle = false;
+                continue;
+            }
+            // Everything queued so far under one write lock
+            lock.writeLock().lock();
+            try {
+                int n = 0;
+                do {
+                    index(r);
+                    n++;
+                } while (n < SEGMENT && (r = pending.poll()) != null);
+                indexed += n;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Caller holds the write lock
+    private void index(Journal.Record r) {
+        Segment s = segments.peekLast();
+        if (s == null || s.size == SEGMENT) {
+            s = new Segment();
+            segments.add(s);
+            if (segments.size() > maxSegments) segments.poll();
+        }
+        int id = s.size;
+        int sender = nameId(r.sender);
+        s.times[id] = r.time;
+        s.senders[id] = sender;
+        s.recipients[id] = r.kind == Journal.PRIVATE ? nameId(r.recipient) : -1;
+        s.texts[id] = r.text;
+        s.minTime = Math.min(s.minTime, r.time);
+        s.maxTime = Math.max(s.maxTime, r.time);
+        s.bySender.computeIfAbsent(sender, k -> new Postings()).add(id);
+        Segment seg = s;
+        tokenize(r.text, term -> seg.terms.computeIfAbsent(term, k -> new Postings()).add(id));
+        s.size++;
+    }
+
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    // Lower-cased runs of letters and digits
+    static void tokenize(String text, Consumer<String> sink) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                sink.accept(text.substring(start, Math.min(i, start + MAX_TERM)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+}
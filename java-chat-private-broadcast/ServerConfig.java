@@ -0,0 +1,132 @@
+package el;
+
+// Server startup options, read once from -Dchat.* system properties
+final class ServerConfig {
+    static final int PORT = Integer.getInteger("chat.port", 12345);
+
+    // "nio" (selector event loops), "virtual" (virtual thread per client, JDK 21+)
+    // or "blocking" (platform thread per client)
+    static final String IO_MODE = System.getProperty("chat.io", "nio");
+    static final int IO_THREADS = Integer.getInteger("chat.ioThreads", Runtime.getRuntime().availableProcessors());
+
+    // NIO line framing: per-loop read buffer and the longest line accepted
+    static final int READ_BUFFER_SIZE = Integer.getInteger("chat.readBuffer", 16 * 1024);
+    static final int MAX_LINE_LENGTH = Integer.getInteger("chat.maxLine", 16 * 1024);
+    static final int POOLED_BUFFERS = Integer.getInteger("chat.pooledBuffers", 256);
+
+    // Blocking/virtual modes: reader buffer per connection, the outbound send threads, and how
+    // long one socket write may block before its client is dropped (0 = no limit)
+    static final int READER_BUFFER_SIZE = Integer.getInteger("chat.readerBuffer", 8192);
+    static final int SEND_THREADS = Integer.getInteger("chat.sendThreads", 64);
+    static final long WRITE_TIMEOUT_MILLIS = Long.getLong("chat.writeTimeoutMillis", 30_000);
+
+    // Routing shards, each with its own thread and its share of the users (0 = route on the
+    // sender's thread under one lock; the default on a single core), and how many messages may
+    // wait for a shard
+    static final int ROUTE_SHARDS = Integer.getInteger("chat.routeShards",
+        Runtime.getRuntime().availableProcessors() > 1 ? Runtime.getRuntime().availableProcessors() : 0);
+    static final int ROUTE_QUEUE = Integer.getInteger("chat.routeQueue", 16_384);
+
+    // Connection storms: the kernel's accept backlog, how many connections may be waiting for
+    // their login line at once (later ones wait in the backlog, unaccepted), how long a client
+    // gets to send it (0 = no limit), and how long presence changes are gathered into one batch
+    // per client (0 = each goes out on its own)
+    static final int ACCEPT_BACKLOG = Integer.getInteger("chat.acceptBacklog", 4096);
+    static final int MAX_HANDSHAKES = Integer.getInteger("chat.maxHandshakes", 1024);
+    static final long HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("chat.handshakeTimeoutMillis", 10_000);
+    static final long PRESENCE_COALESCE_MILLIS = Long.getLong("chat.presenceCoalesceMillis", 50);
+
+    // Per-client outbound queue: capacity in lines, and what to do when a slow reader fills it
+    static final int OUTBOUND_QUEUE = Integer.getInteger("chat.outboundQueue", 1024);
+    static final OutboundQueue.OverflowPolicy OVERFLOW_POLICY =
+        OutboundQueue.OverflowPolicy.parse(System.getProperty("chat.overflow", "drop-oldest"));
+
+    // Most frames handed to one gathering write in NIO mode
+    static final int GATHER_FRAMES = Integer.getInteger("chat.gatherFrames", 64);
+
+    // Blocking/virtual writers: flush once this many bytes or this much time has built up
+    static final int FLUSH_BYTES = Integer.getInteger("chat.flushBytes", 8192);
+    static final long FLUSH_NANOS = Long.getLong("chat.flushMicros", 2000) * 1000;
+
+    // Broadcast history: ring capacity, lines replayed to a new user, and retention (0 = keep until overwritten)
+    static final int HISTORY_SIZE = Integer.getInteger("chat.historySize", 1000);
+    static final int REPLAY_COUNT = Integer.getInteger("chat.replay", 50);
+    static final long HISTORY_RETENTION_MILLIS = Long.getLong("chat.historyRetentionSeconds", 3600) * 1000;
+
+    // Optional durable journal: directory (unset = off), segment size, segments kept,
+    // age limit (0 = none), whether each group commit is fsynced, and how many records may
+    // wait for the writer before the oldest are dropped
+    static final String JOURNAL_DIR = System.getProperty("chat.journal");
+    static final long JOURNAL_SEGMENT_BYTES = Long.getLong("chat.journalSegmentMB", 64) << 20;
+    static final int JOURNAL_SEGMENTS = Integer.getInteger("chat.journalSegments", 16);
+    static final long JOURNAL_RETENTION_MILLIS = Long.getLong("chat.journalRetentionHours", 0) * 3_600_000;
+    static final boolean JOURNAL_FSYNC = !"false".equalsIgnoreCase(System.getProperty("chat.journalFsync"));
+    static final int JOURNAL_QUEUE = Integer.getInteger("chat.journalQueue", 262_144);
+
+    // Clustering: this node's id, the port peers dial (0 = standalone) and the address it listens
+    // on, the secret every node shares (required), the peers to dial ("host:port,host:port") and
+    // how many records may wait for a slow peer
+    static final String NODE_ID = System.getProperty("chat.nodeId", "node-" + PORT);
+    static final int CLUSTER_PORT = Integer.getInteger("chat.clusterPort", 0);
+    static final String CLUSTER_BIND = System.getProperty("chat.clusterBind", "127.0.0.1");
+    static final String CLUSTER_SECRET = System.getProperty("chat.clusterSecret", "");
+    static final String PEERS = System.getProperty("chat.peers", "");
+    static final int CLUSTER_QUEUE = Integer.getInteger("chat.clusterQueue", 65536);
+
+    // Inbound rate limits, messages per second and burst size, per user and per client address
+    // (0 = no limit). A client over its limit is paused, not dropped: the server stops reading
+    // from it until a token is due, and TCP pushes back on the sender.
+    static final double USER_RATE = Double.parseDouble(System.getProperty("chat.userRate", "50"));
+    static final int USER_BURST = Integer.getInteger("chat.userBurst", 100);
+    static final double ADDRESS_RATE = Double.parseDouble(System.getProperty("chat.addressRate", "0"));
+    static final int ADDRESS_BURST = Integer.getInteger("chat.addressBurst", 1000);
+
+    // DEFLATE for binary clients that ask for it with the "deflate" capability (chat.compress=false
+    // refuses it). Frames shorter than COMPRESS_MIN bytes go out as they are.
+    static final boolean COMPRESS = !"false".equalsIgnoreCase(System.getProperty("chat.compress"));
+    static final int COMPRESS_LEVEL = Integer.getInteger("chat.compressLevel", 6);
+    static final int COMPRESS_MIN = Integer.getInteger("chat.compressMin", 48);
+
+    // Clients with the "resume" capability get a session token; when their connection drops the
+    // session (name, rooms, presence) is held this long, and up to RESUME_BUFFER frames sent to it
+    // are kept for replay. A grace of 0 turns resumption off.
+    static final long RESUME_GRACE_MILLIS = Long.getLong("chat.resumeGraceMillis", 30_000);
+    static final int RESUME_BUFFER = Integer.getInteger("chat.resumeBuffer", 512);
+
+    // Private messages to a user who has logged in here but is offline wait in a mailbox, up to
+    // MAILBOX_QUOTA per user (0 = off), for at most MAILBOX_USERS distinct names. Past
+    // MAILBOX_MEMORY bytes in all, mailboxes spill to files in chat.mailboxDir (default a fresh
+    // temp directory), up to MAILBOX_DISK bytes (0 = no limit).
+    static final int MAILBOX_QUOTA = Integer.getInteger("chat.mailboxQuota", 500);
+    static final int MAILBOX_USERS = Integer.getInteger("chat.mailboxUsers", 100_000);
+    static final long MAILBOX_MEMORY = Long.getLong("chat.mailboxMemory", 16L << 20);
+    static final long MAILBOX_DISK = Long.getLong("chat.mailboxDiskMB", 1024) << 20;
+    static final String MAILBOX_DIR = System.getProperty("chat.mailboxDir");
+
+    // SEARCH: messages kept in the index (0 = off; oldest dropped 65536 at a time), results per
+    // page, and how many messages may wait for the indexer before the oldest are dropped
+    static final int SEARCH_CAPACITY = Integer.getInteger("chat.searchCapacity", 1_000_000);
+    static final int SEARCH_QUEUE = Integer.getInteger("chat.searchQueue", 131_072);
+    static final int SEARCH_PAGE_SIZE = Integer.getInteger("chat.searchPageSize", 20);
+
+    // Display: log lines kept in memory, headless mode (no window, log to stdout),
+    // how often the window samples the core, and how many lines its console keeps
+    static final int LOG_BUFFER = Integer.getInteger("chat.logBuffer", 4096);
+    static final boolean HEADLESS = Boolean.getBoolean("chat.headless") || java.awt.GraphicsEnvironment.isHeadless();
+    static final int VIEW_REFRESH_MILLIS = Integer.getInteger("chat.viewRefreshMillis", 250);
+    static final int CONSOLE_LINES = Integer.getInteger("chat.consoleLines", 2000);
+
+    // Metrics: loopback HTTP port for GET /metrics (0 = off) and the el:type=ChatServer MBean
+    static final int METRICS_PORT = Integer.getInteger("chat.metricsPort", 0);
+    static final boolean JMX = !"false".equalsIgnoreCase(System.getProperty("chat.jmx"));
+
+    private ServerConfig() {}
+
+    static boolean nio() {
+        return "nio".equalsIgnoreCase(IO_MODE);
+    }
+
+    static boolean virtual() {
+        return "virtual".equalsIgnoreCase(IO_MODE);
+    }
+}
@@ -0,0 +1,89 @@
+package el;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded in-memory log. Routing threads only store a line into a fixed ring and move on;
+// readers (the stdout printer, the Swing viewer) pull from a sequence number at their own pace.
+// A reader that falls more than a ring behind loses the oldest lines instead of holding anyone up.
+final class ServerLog {
+    private final String[] lines;
+    // Held only for one array store or one copy-out; a lock rather than a monitor so virtual threads don't pin
+    private final ReentrantLock lock = new ReentrantLock();
+    private long next;
+    private volatile Thread waiting;
+
+    ServerLog(int capacity) {
+        lines = new String[Math.max(1, capacity)];
+    }
+
+    void add(String line) {
+        lock.lock();
+        try {
+            lines[(int) (next % lines.length)] = line;
+            next++;
+        } finally {
+            lock.unlock();
+        }
+        Thread w = waiting;
+        if (w != null) LockSupport.unpark(w);
+    }
+
+    // Sequence number of the next line to be written
+    long position() {
+        lock.lock();
+        try {
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies lines from position 'from' on into out and returns the position to read from next.
+    // If some of them were already overwritten, a single note says how many.
+    long read(long from, List<String> out, int max) {
+        lock.lock();
+        try {
+            long oldest = Math.max(0, next - lines.length);
+            if (from < oldest) {
+                out.add("[WARN] " + (oldest - from) + " log lines dropped");
+                from = oldest;
+            }
+            long upto = Math.min(next, from + max);
+            for (long i = from; i < upto; i++) {
+                out.add(lines[(int) (i % lines.length)]);
+            }
+            return upto;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Headless output: one daemon thread copies the log to the stream in batches
+    void printTo(PrintStream stream) {
+        Thread printer = new Thread(() -> {
+            List<String> batch = new ArrayList<>();
+            long pos = 0;
+            while (true) {
+                batch.clear();
+                pos = read(pos, batch, 1024);
+                if (batch.isEmpty()) {
+                    waiting = Thread.currentThread();
+                    if (position() == pos) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    waiting = null;
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder();
+                for (String line : batch) sb.append(line).append('\n');
+                stream.print(sb);
+                stream.flush();
+            }
+        }, "log-printer");
+        printer.setDaemon(true);
+        printer.start();
+    }
+}
@@ -0,0 +1,88 @@
+package el;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Blocking transport: frames are drained onto the socket by a task on the shared send executor.
+// A drain coalesces frames into one buffer and flushes it when it reaches the size threshold,
+// when the oldest unflushed frame reaches the time threshold, or when the queue runs dry.
+class SocketTransport extends QueuedTransport {
+    private final Socket socket;
+    private final BufferedOutputStream out;
+    private final Executor sender;
+    private final Metrics metrics;
+    private volatile boolean closing;
+    private volatile boolean closed;
+    // When the write under way started, 0 between drains; read by the stalled-writer watchdog
+    private volatile long writingSince;
+
+    SocketTransport(Socket socket, OutputStream out, Executor sender, Metrics metrics) {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(out, ServerConfig.FLUSH_BYTES);
+        this.sender = sender;
+        this.metrics = metrics;
+    }
+
+    protected void scheduleDrain() {
+        sender.execute(this::drain);
+    }
+
+    // At most one drain per socket is in flight, so frames keep their order
+    private void drain() {
+        writingSince = System.nanoTime();
+        try {
+            do {
+                int buffered = 0;
+                long firstBuffered = 0;
+                Frame frame;
+                while (!closed && (frame = outbound.poll()) != null) {
+                    if (buffered == 0) firstBuffered = System.nanoTime();
+                    frame.writeTo(out);
+                    buffered += frame.length();
+                    metrics.framesOut.increment();
+                    metrics.bytesOut.add(frame.length());
+                    if (buffered >= ServerConfig.FLUSH_BYTES
+                            || System.nanoTime() - firstBuffered >= ServerConfig.FLUSH_NANOS) {
+                        out.flush();
+                        buffered = 0;
+                        writingSince = System.nanoTime();
+                    }
+                }
+                if (buffered > 0) out.flush();
+            } while (!closed && finishDrain());
+        } catch (IOException e) {
+            abort();
+            return;
+        } finally {
+            writingSince = 0;
+        }
+        if (closing) abort();
+    }
+
+    // One drain has been blocked on the socket for longer than the write timeout
+    boolean stalled(long now) {
+        long since = writingSince;
+        return since != 0 && now - since > TimeUnit.MILLISECONDS.toNanos(ServerConfig.WRITE_TIMEOUT_MILLIS);
+    }
+
+    protected boolean isClosed() { return closed; }
+
+    public InetAddress address() { return socket.getInetAddress(); }
+
+    // The writer closes the socket after its last frame
+    public void close() {
+        if (closing) return;
+        closing = true;
+        drainSoon();
+    }
+
+    public void abort() {
+        closing = true;
+        closed = true;
+        try { socket.close(); } catch (IOException e) {}
+        outbound.clear();
+    }
+}
@@ -0,0 +1,38 @@
+package el;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket kept as a single "theoretical arrival time" (GCRA): each message pushes it one
+// interval into the future, and a message is early if that would put it more than a burst ahead
+// of now. One CAS per message, no timer, no refill thread; safe to share between connections.
+final class TokenBucket {
+    private final long interval;
+    private final long burst;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE / 2);
+
+    TokenBucket(double perSecond, int burst) {
+        this.interval = (long) (1_000_000_000L / perSecond);
+        this.burst = interval * Math.max(1, burst);
+    }
+
+    // 0 if a token was taken, otherwise the nanoseconds to wait before one is available
+    long take(long now) {
+        while (true) {
+            long tat = arrival.get();
+            long next = Math.max(tat, now) + interval;
+            long wait = next - burst - now;
+            if (wait > 0) return wait;
+            if (arrival.compareAndSet(tat, next)) return 0;
+        }
+    }
+
+    // Give back a token taken for a message that another bucket then refused
+    void refund() {
+        arrival.addAndGet(-interval);
+    }
+
+    // Nothing taken for at least a full burst: the bucket is back to its initial state
+    boolean idle(long now) {
+        return arrival.get() + burst < now;
+    }
+}
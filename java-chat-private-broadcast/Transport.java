@@ -0,0 +1,26 @@
+package el;
+
+import java.net.InetAddress;
+
+// Outbound side of one client connection (blocking socket or NIO channel)
+interface Transport {
+    // Queue one encoded line; false if the client's outbound queue overflowed
+    // and it should be disconnected
+    boolean write(Frame frame);
+
+    // Lines waiting to be written
+    int queued();
+
+    // Lines discarded so far by the drop-oldest overflow policy
+    long dropped();
+
+    // Close the connection once already queued output is written; safe to call
+    // more than once, from any thread
+    void close();
+
+    // Close now and discard queued output (slow consumers)
+    void abort();
+
+    // Peer address for per-address limits; null when there is no socket
+    InetAddress address();
+}
@@ -0,0 +1,49 @@
+package el;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Virtual thread factories, looked up reflectively so the server still builds and runs on JDK 17
+final class VirtualThreads {
+    private static final Method OF_VIRTUAL = lookup();
+
+    private VirtualThreads() {}
+
+    private static Method lookup() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    static boolean available() {
+        return OF_VIRTUAL != null;
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory(), or daemon platform threads before JDK 21
+    static ThreadFactory factory(String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> type = Class.forName("java.lang.Thread$Builder");
+                builder = type.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+                return (ThreadFactory) type.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                // fall through to platform threads
+            }
+        }
+        return platformFactory(prefix);
+    }
+
+    // Named daemon platform threads
+    static ThreadFactory platformFactory(String prefix) {
+        AtomicInteger next = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + next.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,20 @@
+package el;
+
+// Shared fixtures for the benchmark states
+final class Benchmarks {
+    private Benchmarks() {}
+
+    // A core with n logged-in in-memory clients named user0..user(n-1), routing on the calling
+    // thread so that a benchmark op covers the whole fan-out
+    static ChatCore coreWithClients(int n, String caps) {
+        return coreWithClients(n, caps, 0);
+    }
+
+    static ChatCore coreWithClients(int n, String caps, int shards) {
+        ChatCore core = new ChatCore(shards);
+        for (int i = 0; i < n; i++) {
+            core.login("user" + i + (caps.isEmpty() ? "" : "|" + caps), new MemoryTransport());
+        }
+        return core;
+    }
+}
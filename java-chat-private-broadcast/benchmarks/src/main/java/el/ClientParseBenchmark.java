@@ -0,0 +1,90 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+// ClientProtocol parsing of each server message type, text and binary
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientParseBenchmark {
+    private ClientProtocol protocol;
+    private String usersLine;
+    private byte[] messageFrame;
+    private byte[] joinFrame;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        protocol = new ClientProtocol(new ClientProtocol.Listener() {
+            public void message(String time, String user, String msg, boolean isPrivate, boolean isSent) {
+                bh.consume(time); bh.consume(user); bh.consume(msg);
+            }
+
+            public void users(int count, String users) { bh.consume(users); }
+
+            public void snapshot(long version, String users) { bh.consume(users); }
+
+            public void presence(long version, String user, boolean joined) { bh.consume(user); }
+
+            public void roomMessage(String room, String time, String user, String msg) { bh.consume(msg); }
+
+            public void room(String room, boolean joined) { bh.consume(room); }
+
+            public void error(String text) { bh.consume(text); }
+
+            public void searchResults(int page, int total, List<SearchIndex.Hit> hits) { bh.consume(hits); }
+        });
+        StringJoiner names = new StringJoiner(",");
+        for (int i = 0; i < 1000; i++) names.add("user" + i);
+        usersLine = "USERS:1000:" + names;
+        messageFrame = body(BinaryProtocol.message(BinaryProtocol.MESSAGE, 7, 0L, "hello everyone, this is a typical chat line"));
+        joinFrame = body(BinaryProtocol.join(42, 7, "user7"));
+    }
+
+    // Frame bytes minus the length prefix, as the client's reader hands them over
+    private static byte[] body(Frame frame) {
+        ByteBuffer b = frame.buffer();
+        b.getInt();
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    @Benchmark
+    public void textBroadcast() {
+        protocol.processMessage("[12:34:56] alice: hello everyone, this is a typical chat line");
+    }
+
+    @Benchmark
+    public void textPrivate() {
+        protocol.processMessage("PRIVATE:12:34:56:alice:psst, just between us");
+    }
+
+    @Benchmark
+    public void textUsers1000() {
+        protocol.processMessage(usersLine);
+    }
+
+    @Benchmark
+    public void textJoin() {
+        protocol.processMessage("JOIN:42:user7");
+    }
+
+    @Benchmark
+    public void binaryMessage() {
+        protocol.processFrame(ByteBuffer.wrap(messageFrame));
+    }
+
+    @Benchmark
+    public void binaryJoin() {
+        protocol.processFrame(ByteBuffer.wrap(joinFrame));
+    }
+}
@@ -0,0 +1,68 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+// CPU side of the DEFLATE tradeoff: time to compress one outbound payload at each level.
+// The bandwidth side, compressed size against raw size, is printed once per trial. A broadcast
+// is compressed once for all its recipients, so this cost does not grow with the room.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"1", "6", "9"})
+    public int level;
+
+    // "message" = one chat line, "replay" = 100 history lines in one batch, "snapshot" = 1000 users
+    @Param({"message", "replay", "snapshot"})
+    public String payload;
+
+    private Deflater deflater;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        deflater = new Deflater(level, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long time = System.currentTimeMillis();
+        switch (payload) {
+            case "message":
+                BinaryProtocol.message(BinaryProtocol.MESSAGE, 42, time, "hello everyone, this is a typical chat line").writeTo(out);
+                break;
+            case "replay":
+                for (int i = 0; i < 100; i++) {
+                    Frame.of("[12:00:" + (10 + i % 50) + "] user" + (i % 7) + ": message number " + i + " about the meeting later today")
+                        .binaryText().writeTo(out);
+                }
+                break;
+            default:
+                List<ChatCore.User> users = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) users.add(new ChatCore.RemoteUser("user" + i, i, "node", 0));
+                BinaryProtocol.snapshot(1, users, users.size()).writeTo(out);
+        }
+        bytes = out.toByteArray();
+        Frame packed = Compression.deflate(deflater, bytes, bytes.length);
+        int size = packed == null ? bytes.length : packed.length();
+        System.out.printf("%n%s at level %d: %d -> %d bytes (%.0f%%)%n", payload, level, bytes.length, size,
+                          100.0 * size / bytes.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflater.end();
+    }
+
+    @Benchmark
+    public Frame deflate() {
+        return Compression.deflate(deflater, bytes, bytes.length);
+    }
+}
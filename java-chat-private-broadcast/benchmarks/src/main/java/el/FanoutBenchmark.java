@@ -0,0 +1,52 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// broadcast() fan-out, sendPrivate() routing and a message to a 10-member room, against in-memory clients.
+// The room's cost should stay flat as the total client count grows.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    // "" = legacy text clients, "binary" = binary protocol clients, "binary,deflate" = compressed
+    @Param({"", "binary", "binary,deflate"})
+    public String caps;
+
+    private ChatCore core;
+    private ChatCore.ClientHandler roomMember;
+    private int next;
+
+    @Setup
+    public void setup() {
+        core = Benchmarks.coreWithClients(clients, caps);
+        for (int i = 0; i < 10; i++) {
+            ChatCore.ClientHandler member = core.login("member" + i + (caps.isEmpty() ? "" : "|" + caps), new MemoryTransport());
+            core.joinRoom(member, "room");
+            if (i == 0) roomMember = member;
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        core.broadcast("hello everyone, this is a typical chat line", "user0");
+    }
+
+    @Benchmark
+    public void sendPrivate() {
+        next = (next + 1) % clients;
+        core.sendPrivate("psst, just between us", "user0", "user" + next);
+    }
+
+    @Benchmark
+    public void roomMessage() {
+        core.roomMessage("room", "hello room, this is a typical chat line", roomMember);
+    }
+}
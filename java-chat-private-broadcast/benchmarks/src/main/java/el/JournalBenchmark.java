@@ -0,0 +1,56 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Sustained journal appends: each op is one record queued from the fan-out side, and an
+// invocation only ends once the writer has committed its whole batch, so the score is what
+// the disk keeps up with rather than how fast the queue fills. The target is 100k ops/s.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JournalBenchmark {
+    private static final int BATCH = 10_000;
+
+    @Param({"false", "true"})
+    public boolean fsync;
+
+    private Path dir;
+    private Journal journal;
+    private long committed;
+    private final String text = "a typical chat line of about sixty bytes, give or take a few";
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("journal-bench");
+        journal = new Journal(dir, 64L << 20, 4, 0, fsync, 262_144, error -> { throw new IllegalStateException(error); });
+        journal.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void appendAndCommit() {
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < BATCH; i++) journal.append(Journal.BROADCAST, time, "user42", null, text);
+        committed += BATCH;
+        while (journal.written() + journal.dropped() < committed) LockSupport.parkNanos(10_000);
+    }
+}
@@ -0,0 +1,241 @@
+package el;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless load generator: logs in many simulated users with the same protocol as ChatClient,
+// drives a broadcast/private message mix at a fixed rate, and reports throughput and
+// end-to-end delivery latency. Every message embeds its send time (System.nanoTime of this
+// JVM), so latency is measured from send to parse on the receiving simulated user.
+//
+//   java -Dload.users=2000 -Dload.rate=2000 -Dload.seconds=30 -cp benchmarks.jar el.LoadGenerator
+public final class LoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", ServerConfig.PORT);
+    private static final int USERS = Integer.getInteger("load.users", 1000);
+    // Messages per second across all users
+    private static final int RATE = Integer.getInteger("load.rate", 1000);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    // Share of messages sent privately to a random other user
+    private static final double PRIVATE_RATIO = Double.parseDouble(System.getProperty("load.private", "0.1"));
+    private static final boolean BINARY = Boolean.getBoolean("load.binary");
+    // Binary users also ask for DEFLATE-compressed frames
+    private static final boolean DEFLATE = BINARY && Boolean.getBoolean("load.deflate");
+    // New connections per second while logging in
+    private static final int CONNECT_RATE = Integer.getInteger("load.connectRate", 500);
+
+    private static final String MARK = "LT";
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    // Logins the server answered with an error, and connections that failed before that
+    private long refusedLogins;
+    private long failedConnects;
+    private final List<SimUser> users = new CopyOnWriteArrayList<>();
+    private volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        ThreadFactory readers = VirtualThreads.factory("load-reader-");
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < USERS; i++) {
+            try {
+                SimUser u = new SimUser("load" + i);
+                readers.newThread(u::readLoop).start();
+                users.add(u);
+            } catch (LoginRefused e) {
+                if (refusedLogins++ == 0) System.out.println(e.getMessage());
+            } catch (IOException e) {
+                failedConnects++;
+            }
+            pace(connectStart, i + 1, CONNECT_RATE);
+        }
+        System.out.printf("connected %d/%d users in %.1f s (%s protocol), %d logins refused, %d connections failed%n",
+                          users.size(), USERS, (System.nanoTime() - connectStart) / 1e9,
+                          DEFLATE ? "binary+deflate" : BINARY ? "binary" : "text", refusedLogins, failedConnects);
+
+        drive(WARMUP_SECONDS);
+        latency.reset();
+        received.set(0);
+        sent.set(0);
+        measuring = true;
+        long start = System.nanoTime();
+        drive(SECONDS);
+        Thread.sleep(1000); // let in-flight deliveries land
+        measuring = false;
+        report((System.nanoTime() - start) / 1e9);
+
+        for (SimUser u : users) u.close();
+    }
+
+    // Send at RATE msgs/sec for the given time, spreading senders at random
+    private void drive(int seconds) throws InterruptedException {
+        if (seconds <= 0 || users.isEmpty()) return;
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        long total = (long) RATE * seconds;
+        for (long n = 0; n < total; n++) {
+            SimUser from = users.get(random.nextInt(users.size()));
+            if (random.nextDouble() < PRIVATE_RATIO && users.size() > 1) {
+                SimUser to = users.get(random.nextInt(users.size()));
+                if (to != from) from.sendPrivate(to.name);
+            } else {
+                from.sendAll();
+            }
+            pace(start, n + 1, RATE);
+        }
+    }
+
+    private static void pace(long start, long done, int perSecond) throws InterruptedException {
+        long due = start + done * 1_000_000_000L / perSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 1_000_000) Thread.sleep(wait / 1_000_000);
+    }
+
+    private void report(double seconds) {
+        long delivered = received.get();
+        System.out.printf("sent %d msgs (%.0f/s), delivered %d (%.0f/s), errors %d, logins refused %d%n",
+                          sent.get(), sent.get() / seconds, delivered, delivered / seconds, errors.get(), refusedLogins);
+        System.out.printf("latency us: p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f  mean %.1f%n",
+                          latency.percentile(0.50) / 1e3, latency.percentile(0.99) / 1e3,
+                          latency.percentile(0.999) / 1e3, latency.max() / 1e3, latency.mean() / 1e3);
+    }
+
+    private void onMessage(String msg) {
+        if (!msg.startsWith(MARK + ":")) return;
+        int end = msg.indexOf(':', MARK.length() + 1);
+        if (end < 0) return;
+        long sentAt = Long.parseLong(msg.substring(MARK.length() + 1, end));
+        if (measuring) {
+            latency.record(System.nanoTime() - sentAt);
+            received.incrementAndGet();
+        }
+    }
+
+    // One simulated ChatClient
+    private final class SimUser implements ClientProtocol.Listener {
+        final String name;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final ClientProtocol protocol = new ClientProtocol(this);
+        DataInputStream binaryIn;
+        BufferedReader textIn;
+
+        SimUser(String name) throws IOException {
+            this.name = name;
+            socket = new Socket(HOST, PORT);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            out.write((name + "|presence" + (BINARY ? ",binary" : "") + (DEFLATE ? ",deflate" : "") + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // A refused login gets one ERROR: line. Anything else (BINARY:<id>, or history and the
+            // SNAPSHOT for a text client) means it went through, and text clients parse it as usual.
+            String first = readLine(in);
+            if (first == null || first.startsWith("ERROR:") || (BINARY && !first.startsWith(BinaryProtocol.ACK))) {
+                socket.close();
+                throw new LoginRefused(name + " refused: " + first);
+            }
+            if (BINARY) {
+                binaryIn = new DataInputStream(in);
+            } else {
+                protocol.processMessage(first);
+                textIn = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            }
+        }
+
+        void sendAll() {
+            send(BinaryProtocol.SAY, 0, null);
+        }
+
+        void sendPrivate(String to) {
+            Integer id = protocol.userId(to);
+            if (BINARY && id == null) return;
+            send(BinaryProtocol.WHISPER, id == null ? 0 : id, to);
+        }
+
+        private synchronized void send(byte opcode, int toId, String to) {
+            String text = MARK + ":" + System.nanoTime() + ":" + name;
+            try {
+                if (BINARY) {
+                    BinaryProtocol.write(new DataOutputStream(out), opcode, toId, text);
+                } else {
+                    String line = to == null ? text : "PRIVATE:" + to + ":" + text;
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+        }
+
+        void readLoop() {
+            try {
+                if (BINARY) {
+                    byte[] buf = new byte[256];
+                    while (true) {
+                        int length = binaryIn.readInt();
+                        if (length > buf.length) buf = new byte[length];
+                        binaryIn.readFully(buf, 0, length);
+                        protocol.processFrame(ByteBuffer.wrap(buf, 0, length));
+                    }
+                }
+                String line;
+                while ((line = textIn.readLine()) != null) {
+                    protocol.processMessage(line);
+                }
+            } catch (IOException e) {
+                // closed at the end of the run
+            }
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException e) {}
+        }
+
+        public void message(String time, String user, String msg, boolean isPrivate, boolean isSent) {
+            if (!isSent) onMessage(msg);
+        }
+
+        public void users(int count, String users) {}
+
+        public void snapshot(long version, String users) {}
+
+        public void presence(long version, String user, boolean joined) {}
+
+        public void roomMessage(String room, String time, String user, String msg) {}
+
+        public void room(String room, boolean joined) {}
+
+        public void error(String text) {}
+
+        public void searchResults(int page, int total, List<SearchIndex.Hit> hits) {}
+    }
+
+    private static final class LoginRefused extends IOException {
+        LoginRefused(String message) {
+            super(message);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') line.write(b);
+        return b == -1 && line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+    }
+}
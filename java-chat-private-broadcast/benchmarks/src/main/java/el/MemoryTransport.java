@@ -0,0 +1,28 @@
+package el;
+
+import java.net.InetAddress;
+
+// In-memory stand-in for a client socket: queued frames are drained into a byte
+// counter on the calling thread, so a benchmark measures routing, not the kernel
+final class MemoryTransport extends QueuedTransport {
+    long bytes;
+    long frames;
+
+    protected void scheduleDrain() {
+        do {
+            Frame f;
+            while ((f = outbound.poll()) != null) {
+                bytes += f.length();
+                frames++;
+            }
+        } while (finishDrain());
+    }
+
+    protected boolean isClosed() { return false; }
+
+    public void close() {}
+
+    public void abort() {}
+
+    public InetAddress address() { return null; }
+}
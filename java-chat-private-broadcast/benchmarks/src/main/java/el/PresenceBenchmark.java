@@ -0,0 +1,37 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one user joining and leaving as the number of online users grows:
+// full USERS lists for legacy clients versus JOIN/LEAVE deltas. Coalescing is off so each
+// change is flushed, and its fan-out measured, inside the call
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.presenceCoalesceMillis=0")
+public class PresenceBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int users;
+
+    @Param({"", "presence"})
+    public String caps;
+
+    private ChatCore core;
+    private String login;
+
+    @Setup
+    public void setup() {
+        core = Benchmarks.coreWithClients(users, caps);
+        login = caps.isEmpty() ? "churn" : "churn|" + caps;
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        ChatCore.ClientHandler handler = core.login(login, new MemoryTransport());
+        handler.disconnect();
+    }
+}
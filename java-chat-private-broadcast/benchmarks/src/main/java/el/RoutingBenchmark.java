@@ -0,0 +1,45 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Routing throughput with every core sending at once: shards = 0 is the single routing lock
+// (fan-out on the sender's thread), otherwise that many routing shards. With shards an op only
+// hands the message off, but the short shard queues push back, so the steady rate is what the
+// shards deliver. Run with -t to choose the sending threads, e.g. -t 8 on an 8-core box.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Dchat.routeQueue=256")
+@Threads(Threads.MAX)
+public class RoutingBenchmark {
+    @Param({"0", "1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"1000"})
+    public int clients;
+
+    private ChatCore core;
+
+    @Setup
+    public void setup() {
+        core = Benchmarks.coreWithClients(clients, "", shards);
+    }
+
+    // Every client gets it; all of the fan-out can run in parallel across shards
+    @Benchmark
+    public void broadcast() {
+        core.broadcast("hello everyone, this is a typical chat line", "user" + ThreadLocalRandom.current().nextInt(clients));
+    }
+
+    // Random pairs, so conversations spread over every shard
+    @Benchmark
+    public void sendPrivate() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        core.sendPrivate("psst, just between us", "user" + random.nextInt(clients), "user" + random.nextInt(clients));
+    }
+}
@@ -0,0 +1,64 @@
+package el;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// One SEARCH page against a full index: a rare word, a common word, two words together, a
+// word from one sender, and a word only found in one user's private messages. Each walks the
+// shortest posting list, so the cost follows the rarest filter, not the number of messages.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class SearchBenchmark {
+    private static final String[] WORDS = {
+        "meeting", "deploy", "lunch", "review", "build", "release", "coffee", "bug", "fix", "test",
+        "server", "client", "today", "tomorrow", "later", "please", "thanks", "done", "ready", "blocked"
+    };
+
+    @Param({"1000000"})
+    public int messages;
+
+    @Param({"rare", "common", "and", "from", "private"})
+    public String query;
+
+    private SearchIndex index;
+    private SearchIndex.Query parsed;
+
+    @Setup
+    public void setup() {
+        index = new SearchIndex(messages, ServerConfig.SEARCH_QUEUE);
+        Random random = new Random(1);
+        long time = System.currentTimeMillis() - messages;
+        for (int i = 0; i < messages; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int w = 0; w < 8; w++) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            // One message in 10000 mentions the outage
+            if (i % 10_000 == 0) text.append("outage");
+            String sender = "user" + random.nextInt(1000);
+            if (i % 100 == 0) {
+                index.load(time + i, sender, "user" + random.nextInt(1000), text + "secret");
+            } else {
+                index.load(time + i, sender, null, text.toString());
+            }
+        }
+        while (index.indexed() < messages) LockSupport.parkNanos(1_000_000);
+        switch (query) {
+            case "rare": parsed = SearchIndex.Query.parse("outage"); break;
+            case "common": parsed = SearchIndex.Query.parse("deploy"); break;
+            case "and": parsed = SearchIndex.Query.parse("deploy blocked"); break;
+            case "from": parsed = SearchIndex.Query.parse("deploy from:user7"); break;
+            default: parsed = SearchIndex.Query.parse("secret"); break;
+        }
+    }
+
+    @Benchmark
+    public SearchIndex.Page firstPage() {
+        return index.search(parsed, "user7", 0, 20);
+    }
+}